@@ -7,4 +7,4 @@ APP_ABI := armeabi x86 mips
 
 # If APP_MODULES is not set, all modules are compiled!
 APP_MODULES := blank_webserver tcpdump
-#APP_MODULES += dnsmasq
+APP_MODULES += dnsmasq
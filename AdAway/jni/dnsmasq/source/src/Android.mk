@@ -8,10 +8,11 @@ LOCAL_SRC_FILES :=  bpf.c cache.c dbus.c dhcp.c dnsmasq.c forward.c helper.c lea
 
 LOCAL_MODULE := dnsmasq
 
-LOCAL_C_INCLUDES := external/dnsmasq/src
+LOCAL_C_INCLUDES := $(LOCAL_PATH)
 
 LOCAL_CFLAGS := -O2 -g -W -Wall -D__ANDROID__ -DNO_IPV6 -DNO_TFTP -DNO_SCRIPT
-LOCAL_SYSTEM_SHARED_LIBRARIES := libc
-LOCAL_SHARED_LIBRARIES := libcutils liblog
+LOCAL_CFLAGS += -pie -fPIE
+LOCAL_LDFLAGS += -pie -fPIE
+LOCAL_LDLIBS := -llog
 
 include $(BUILD_EXECUTABLE)
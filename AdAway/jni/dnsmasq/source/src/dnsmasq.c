@@ -983,7 +983,12 @@ void clear_cache_and_reload(time_t now)
 
 #ifdef __ANDROID__
 
+/* set when stdin reached EOF, e.g. /dev/null of a background job started by AdAway */
+static int stdin_closed = 0;
+
 static int set_android_listeners(fd_set *set, int *maxfdp) {
+    if (stdin_closed)
+        return 0;
     FD_SET(STDIN_FILENO, set);
     bump_maxfd(STDIN_FILENO, maxfdp);
     return 0;
@@ -1000,6 +1005,11 @@ static int check_android_listeners(fd_set *set) {
             my_syslog(LOG_ERR, _("Error reading from stdin (%s)"), strerror(errno));
             return -1;
         }
+        if (rc == 0) {
+            /* stop selecting on stdin, it would be readable forever */
+            stdin_closed = 1;
+            return 0;
+        }
         buffer[rc] = '\0';
         while(consumed < rc) {
             char *cmd;
@@ -20,43 +20,46 @@
 
 package org.adaway.helper;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Iterator;
 
 import org.adaway.R;
+import org.adaway.provider.AdAwayContract.Blacklist;
+import org.adaway.provider.AdAwayContract.RedirectionList;
+import org.adaway.provider.AdAwayContract.Whitelist;
 import org.adaway.provider.ProviderHelper;
 import org.adaway.ui.dialog.ActivityNotFoundDialogFragment;
 import org.adaway.util.Constants;
 import org.adaway.util.HostsParser;
 import org.adaway.util.Log;
 
+import gnu.trove.set.hash.THashSet;
+
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Environment;
 import android.support.v4.app.FragmentActivity;
 import android.widget.Toast;
 
-import gnu.trove.set.hash.THashSet;
-import gnu.trove.map.hash.THashMap;
-
 public class ImportExportHelper {
 
     // request code to identify the selection of a file in onActivityResult() in activity
     final static int REQUEST_CODE_IMPORT = 42;
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * Opens file manager to open file and return it in onActivityResult in Activity
      *
@@ -97,34 +100,49 @@ public class ImportExportHelper {
             Log.d(Constants.TAG, "File manager Uri: " + result.toString());
 
             // do it in AsyncTask without blocking the user interface thread
-            AsyncTask<Void, Void, Void> importListsTask = new AsyncTask<Void, Void, Void>() {
+            AsyncTask<Void, Integer, Void> importListsTask = new AsyncTask<Void, Integer, Void>() {
                 private ProgressDialog mApplyProgressDialog;
 
                 @Override
                 protected Void doInBackground(Void... unused) {
-                    THashSet<String> blacklist = null;
-                    THashSet<String> whitelist = null;
-                    THashMap<String, String> redirectionList = null;
+                    LineBatchInputStream is = null;
                     try {
-                        InputStream is = context.getContentResolver().openInputStream(result);
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-
-                        HostsParser parser = new HostsParser(reader, true, true);
-                        blacklist = parser.getBlacklist();
-                        whitelist = parser.getWhitelist();
-                        redirectionList = parser.getRedirectionList();
-
-                        is.close();
+                        AssetFileDescriptor file = context.getContentResolver()
+                                .openAssetFileDescriptor(result, "r");
+                        long length = file.getLength();
+                        is = new LineBatchInputStream(file.createInputStream(),
+                                Constants.IMPORT_BATCH_SIZE);
+
+                        // hostnames of redirections inserted by earlier batches
+                        THashSet<String> importedRedirections = new THashSet<String>();
+
+                        // parse and insert batch after batch, only one batch is in memory
+                        do {
+                            HostsParser parser = new HostsParser(is, true, true);
+
+                            ProviderHelper.importBlacklist(context, parser.getBlacklist());
+                            ProviderHelper.importWhitelist(context, parser.getWhitelist());
+                            ProviderHelper.importRedirectionList(context,
+                                    parser.getRedirectionList(), importedRedirections);
+
+                            if (length > 0) {
+                                publishProgress((int) (is.getPosition() * 100 / length));
+                            }
+                        } while (is.nextBatch());
                     } catch (FileNotFoundException e) {
                         Log.e(Constants.TAG, "File not found!", e);
                     } catch (IOException e) {
                         Log.e(Constants.TAG, "IO Exception", e);
+                    } finally {
+                        try {
+                            if (is != null) {
+                                is.close();
+                            }
+                        } catch (IOException e) {
+                            Log.e(Constants.TAG, "Exception on close of import file.", e);
+                        }
                     }
 
-                    ProviderHelper.importBlacklist(context, blacklist);
-                    ProviderHelper.importWhitelist(context, whitelist);
-                    ProviderHelper.importRedirectionList(context, redirectionList);
-
                     // return nothing as type is Void
                     return null;
                 }
@@ -132,13 +150,16 @@ public class ImportExportHelper {
                 @Override
                 protected void onPreExecute() {
                     super.onPreExecute();
-                    mApplyProgressDialog = new ProgressDialog(context);
-                    mApplyProgressDialog.setMessage(context.getString(R.string.import_dialog));
-                    mApplyProgressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-                    mApplyProgressDialog.setCancelable(false);
+                    mApplyProgressDialog = createProgressDialog(context, R.string.import_dialog);
                     mApplyProgressDialog.show();
                 }
 
+                @Override
+                protected void onProgressUpdate(Integer... progress) {
+                    mApplyProgressDialog.setIndeterminate(false);
+                    mApplyProgressDialog.setProgress(progress[0]);
+                }
+
                 @Override
                 protected void onPostExecute(Void unused) {
                     super.onPostExecute(unused);
@@ -157,65 +178,87 @@ public class ImportExportHelper {
      */
     public static void exportLists(final Context context) {
         // do it in AsyncTask without blocking the user interface thread
-        AsyncTask<Void, Void, Void> exportListsTask = new AsyncTask<Void, Void, Void>() {
+        AsyncTask<Void, Integer, Void> exportListsTask = new AsyncTask<Void, Integer, Void>() {
             private ProgressDialog mApplyProgressDialog;
 
+            // rows written and rows of all lists, for progress
+            private int mWritten;
+            private int mTotal;
+
             @Override
             protected Void doInBackground(Void... unused) {
-                THashSet<String> whitelist = ProviderHelper.getEnabledWhitelistHashSet(context);
-                THashSet<String> blacklist = ProviderHelper.getEnabledBlacklistHashSet(context);
-                THashMap<String, String> redirectionList = ProviderHelper
-                        .getEnabledRedirectionListHashMap(context);
+                Cursor blacklist = ProviderHelper.getEnabledBlacklistCursor(context);
+                Cursor whitelist = ProviderHelper.getEnabledWhitelistCursor(context);
+                Cursor redirectionList = ProviderHelper.getEnabledRedirectionListCursor(context);
+                mTotal = blacklist.getCount() + whitelist.getCount() + redirectionList.getCount();
 
                 try {
                     File sdcard = Environment.getExternalStorageDirectory();
                     if (sdcard.canWrite()) {
                         File exportFile = new File(sdcard, "adaway-export");
-                        FileWriter writer = new FileWriter(exportFile);
-                        BufferedWriter out = new BufferedWriter(writer);
-
-                        out.write(Constants.HEADER_EXPORT + Constants.LINE_SEPERATOR);
-
-                        // write blacklist
-                        Iterator<String> itrBlacklist = blacklist.iterator();
-                        while (itrBlacklist.hasNext()) {
-                            out.write(Constants.LOCALHOST_IPv4 + " " + itrBlacklist.next()
-                                    + Constants.LINE_SEPERATOR);
-                        }
-
-                        // write whitelist
-                        Iterator<String> itrWhitelist = whitelist.iterator();
-                        while (itrWhitelist.hasNext()) {
-                            out.write(Constants.WHITELIST_ENTRY + " " + itrWhitelist.next()
-                                    + Constants.LINE_SEPERATOR);
+                        BufferedWriter out = new BufferedWriter(new FileWriter(exportFile),
+                                BUFFER_SIZE);
+                        try {
+                            out.write(Constants.HEADER_EXPORT);
+                            out.write(Constants.LINE_SEPERATOR);
+
+                            // write lists straight from the cursors
+                            writeList(out, blacklist, Constants.LOCALHOST_IPv4, -1,
+                                    blacklist.getColumnIndexOrThrow(Blacklist.HOSTNAME));
+                            writeList(out, whitelist, Constants.WHITELIST_ENTRY, -1,
+                                    whitelist.getColumnIndexOrThrow(Whitelist.HOSTNAME));
+                            writeList(out, redirectionList, null,
+                                    redirectionList.getColumnIndexOrThrow(RedirectionList.IP),
+                                    redirectionList
+                                            .getColumnIndexOrThrow(RedirectionList.HOSTNAME));
+                        } finally {
+                            out.close();
                         }
-
-                        // write redirection list
-                        for (HashMap.Entry<String, String> item : redirectionList.entrySet()) {
-                            out.write(item.getValue() + " " + item.getKey()
-                                    + Constants.LINE_SEPERATOR);
-                        }
-
-                        out.close();
                     }
                 } catch (IOException e) {
                     Log.e(Constants.TAG, "Could not write file " + e.getMessage());
+                } finally {
+                    blacklist.close();
+                    whitelist.close();
+                    redirectionList.close();
                 }
 
                 // return nothing as type is Void
                 return null;
             }
 
+            /**
+             * Write one line per row, ip is the fixed ip or taken from ipCol if it is null
+             */
+            private void writeList(BufferedWriter out, Cursor cursor, String ip, int ipCol,
+                                   int hostnameCol) throws IOException {
+                if (cursor.moveToFirst()) {
+                    do {
+                        out.write(ip != null ? ip : cursor.getString(ipCol));
+                        out.write(' ');
+                        out.write(cursor.getString(hostnameCol));
+                        out.write(Constants.LINE_SEPERATOR);
+
+                        if (++mWritten % Constants.IMPORT_BATCH_SIZE == 0) {
+                            publishProgress(mWritten * 100 / mTotal);
+                        }
+                    } while (cursor.moveToNext());
+                }
+            }
+
             @Override
             protected void onPreExecute() {
                 super.onPreExecute();
-                mApplyProgressDialog = new ProgressDialog(context);
-                mApplyProgressDialog.setMessage(context.getString(R.string.export_dialog));
-                mApplyProgressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-                mApplyProgressDialog.setCancelable(false);
+                mApplyProgressDialog = createProgressDialog(context, R.string.export_dialog);
                 mApplyProgressDialog.show();
             }
 
+            @Override
+            protected void onProgressUpdate(Integer... progress) {
+                mApplyProgressDialog.setIndeterminate(false);
+                mApplyProgressDialog.setProgress(progress[0]);
+            }
+
             @Override
             protected void onPostExecute(Void unused) {
                 super.onPostExecute(unused);
@@ -229,4 +272,102 @@ public class ImportExportHelper {
 
         exportListsTask.execute();
     }
+
+    /**
+     * Progress dialog in percent, indeterminate until the first progress is known
+     */
+    private static ProgressDialog createProgressDialog(Context context, int messageId) {
+        ProgressDialog dialog = new ProgressDialog(context);
+        dialog.setMessage(context.getString(messageId));
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setIndeterminate(true);
+        dialog.setMax(100);
+        dialog.setCancelable(false);
+        return dialog;
+    }
+
+    /**
+     * Ends after a number of lines, so that a parser only reads one batch. nextBatch() continues
+     * with the following lines.
+     */
+    private static class LineBatchInputStream extends FilterInputStream {
+        private final int mMaxLines;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPosition;
+        private int mCount;
+
+        private int mLines;
+        private long mBytes;
+        private boolean mEnd;
+
+        LineBatchInputStream(InputStream in, int maxLines) {
+            super(in);
+            mMaxLines = maxLines;
+        }
+
+        /**
+         * @return false if the end of the stream has been reached
+         */
+        boolean nextBatch() {
+            mLines = 0;
+            return !mEnd;
+        }
+
+        /**
+         * @return bytes read until now
+         */
+        long getPosition() {
+            return mBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int read = read(buffer, 0, 1);
+            return read == -1 ? -1 : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mLines >= mMaxLines || mEnd) {
+                return -1;
+            }
+            if (mPosition == mCount) {
+                int read = in.read(mBuffer, 0, mBuffer.length);
+                if (read == -1) {
+                    mEnd = true;
+                    return -1;
+                }
+                mPosition = 0;
+                mCount = read;
+            }
+
+            // stop after the last line of this batch
+            int end = Math.min(mCount, mPosition + count);
+            int i = mPosition;
+            while (i < end) {
+                if (mBuffer[i++] == '\n' && ++mLines >= mMaxLines) {
+                    break;
+                }
+            }
+
+            int length = i - mPosition;
+            System.arraycopy(mBuffer, mPosition, buffer, offset, length);
+            mPosition = i;
+            mBytes += length;
+            return length;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(count, mBuffer.length)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
@@ -25,6 +25,7 @@ import org.adaway.ui.dialog.ActivityNotFoundDialogFragment;
 import org.adaway.util.Constants;
 import org.adaway.util.Log;
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
 import org.sufficientlysecure.rootcommands.Toolbox;
 
 import android.content.ActivityNotFoundException;
@@ -40,8 +41,9 @@ public class OpenHelper {
      * @param activity
      */
     public static void openHostsFile(FragmentActivity activity) {
+        Shell rootShell = null;
         try {
-            Shell rootShell = Shell.startRootShell();
+            rootShell = ShellPool.getRootShellPool().acquire();
 
             Toolbox tb = new Toolbox(rootShell);
             /* remount for write access */
@@ -50,10 +52,10 @@ public class OpenHelper {
             } else {
                 Log.e(Constants.TAG, "System partition could not be remounted as rw!");
             }
-
-            rootShell.close();
         } catch (Exception e) {
             Log.e(Constants.TAG, "Problem with root shell!", e);
+        } finally {
+            ShellPool.getRootShellPool().release(rootShell);
         }
     }
 
@@ -88,6 +88,27 @@ public class PreferenceHelper {
         );
     }
 
+    public static int getParallelDownloads(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        String def = context.getString(R.string.pref_parallel_downloads_def);
+        try {
+            return Integer.parseInt(prefs.getString(
+                    context.getString(R.string.pref_parallel_downloads_key), def));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(def);
+        }
+    }
+
+    public static boolean getParseWhileDownloading(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getBoolean(context.getString(R.string.pref_parse_while_downloading_key),
+                Boolean.parseBoolean(context
+                        .getString(R.string.pref_parse_while_downloading_def))
+        );
+    }
+
     public static String getRedirectionIP(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
                 Context.MODE_PRIVATE);
@@ -95,6 +116,13 @@ public class PreferenceHelper {
                 context.getString(R.string.pref_redirection_ip_def));
     }
 
+    public static boolean getCompactHosts(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getBoolean(context.getString(R.string.pref_compact_hosts_key),
+                Boolean.parseBoolean(context.getString(R.string.pref_compact_hosts_def)));
+    }
+
     public static String getApplyMethod(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
                 Context.MODE_PRIVATE);
@@ -109,6 +137,41 @@ public class PreferenceHelper {
                 context.getString(R.string.pref_custom_target_def));
     }
 
+    /**
+     * MD5 of the hosts file that was last copied to the target, empty if unknown
+     */
+    public static String getAppliedHostsHash(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getString(context.getString(R.string.pref_applied_hosts_hash_key),
+                context.getString(R.string.pref_applied_hosts_hash_def));
+    }
+
+    public static void setAppliedHostsHash(Context context, String value) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putString(context.getString(R.string.pref_applied_hosts_hash_key), value);
+        editor.commit();
+    }
+
+    /**
+     * Port of the running dnsmasq instance, it alternates between two ports on restarts
+     */
+    public static int getDnsmasqPort(Context context, int def) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getInt(context.getString(R.string.pref_dnsmasq_port_key), def);
+    }
+
+    public static void setDnsmasqPort(Context context, int value) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putInt(context.getString(R.string.pref_dnsmasq_port_key), value);
+        editor.commit();
+    }
+
     public static boolean getWebserverEnabled(Context context) {
         SharedPreferences prefs = context.getApplicationContext().getSharedPreferences(
                 Constants.PREFS_NAME, Context.MODE_PRIVATE);
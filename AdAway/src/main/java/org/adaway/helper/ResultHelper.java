@@ -80,7 +80,7 @@ public class ResultHelper {
 
             // back to old status
             int oldStatus;
-            if (ApplyUtils.isHostsFileCorrect(context, Constants.ANDROID_SYSTEM_ETC_HOSTS)) {
+            if (ApplyUtils.isApplied(context)) {
                 oldStatus = StatusCodes.ENABLED;
             } else {
                 oldStatus = StatusCodes.DISABLED;
@@ -292,7 +292,7 @@ public class ResultHelper {
                     text = context.getString(R.string.revert_problem);
 
                     // back to old status
-                    if (ApplyUtils.isHostsFileCorrect(context, Constants.ANDROID_SYSTEM_ETC_HOSTS)) {
+                    if (ApplyUtils.isApplied(context)) {
                         BaseActivity.updateStatusEnabled(context);
                     } else {
                         BaseActivity.updateStatusDisabled(context);
@@ -29,6 +29,7 @@ public class AdAwayContract {
         String URL = "url";
         String LAST_MODIFIED_LOCAL = "last_modified_local";
         String LAST_MODIFIED_ONLINE = "last_modified_online";
+        String ETAG = "etag";
         String ENABLED = "enabled";
     }
 
@@ -35,7 +35,7 @@ import org.adaway.util.Log;
 
 public class AdAwayDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "adaway.db";
-    private static final int DATABASE_VERSION = 11;
+    private static final int DATABASE_VERSION = 12;
 
     public interface Tables {
         String HOSTS_SOURCES = "hosts_sources";
@@ -48,7 +48,7 @@ public class AdAwayDatabase extends SQLiteOpenHelper {
             + Tables.HOSTS_SOURCES + "(" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + HostsSourcesColumns.URL + " TEXT UNIQUE, " + HostsSourcesColumns.LAST_MODIFIED_LOCAL
             + " INTEGER, " + HostsSourcesColumns.LAST_MODIFIED_ONLINE + " INTEGER, "
-            + HostsSourcesColumns.ENABLED + " INTEGER)";
+            + HostsSourcesColumns.ENABLED + " INTEGER, " + HostsSourcesColumns.ETAG + " TEXT)";
 
     private static final String CREATE_WHITELIST = "CREATE TABLE IF NOT EXISTS " + Tables.WHITELIST
             + "(" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -195,12 +195,11 @@ public class AdAwayDatabase extends SQLiteOpenHelper {
             db.execSQL("INSERT INTO "
                     + Tables.HOSTS_SOURCES
                     + " (url, last_modified_local, last_modified_online, enabled) VALUES (\"https://adaway.org/hosts.txt\", 0, 0, 1)");
-        } else {
-            db.execSQL("DROP TABLE IF EXISTS " + Tables.HOSTS_SOURCES);
-            db.execSQL("DROP TABLE IF EXISTS " + Tables.WHITELIST);
-            db.execSQL("DROP TABLE IF EXISTS " + Tables.BLACKLIST);
-            db.execSQL("DROP TABLE IF EXISTS " + Tables.REDIRECTION_LIST);
-            onCreate(db);
+        }
+        if (oldVersion <= 11) {
+            // add column etag to hosts sources, used for conditional requests
+            db.execSQL("ALTER TABLE " + Tables.HOSTS_SOURCES + " ADD COLUMN "
+                    + HostsSourcesColumns.ETAG + " TEXT");
         }
     }
 }
\ No newline at end of file
@@ -20,7 +20,11 @@
 
 package org.adaway.provider;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.adaway.provider.AdAwayContract.Blacklist;
 import org.adaway.provider.AdAwayContract.HostsSources;
@@ -31,13 +35,18 @@ import org.adaway.util.Constants;
 import org.adaway.util.Log;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
@@ -86,6 +95,9 @@ public class AdAwayProvider extends ContentProvider {
 
     private AdAwayDatabase mAdAwayDatabase;
 
+    // uris changed by the applyBatch() running on this thread, null outside of applyBatch()
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
+
     /**
      * {@inheritDoc}
      */
@@ -162,11 +174,95 @@ public class AdAwayProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return rowUri;
     }
 
+    /**
+     * Inserts all values in one transaction with compiled INSERT OR IGNORE statements, entries
+     * that already exist are skipped. Change is notified once.
+     *
+     * @return number of inserted rows
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        Log.d(Constants.TAG, "bulkInsert(uri=" + uri + ", count=" + values.length + ")");
+
+        final String table = getTable(uri);
+        final SQLiteDatabase db = mAdAwayDatabase.getWritableDatabase();
+
+        // one statement for every set of columns
+        HashMap<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues row : values) {
+                String[] columns = row.keySet().toArray(new String[row.size()]);
+                Arrays.sort(columns);
+                String key = TextUtils.join(",", columns);
+
+                SQLiteStatement statement = statements.get(key);
+                if (statement == null) {
+                    statement = db.compileStatement("INSERT OR IGNORE INTO " + table + " ("
+                            + key + ") VALUES (" + buildPlaceholders(columns.length) + ")");
+                    statements.put(key, statement);
+                }
+
+                statement.clearBindings();
+                for (int i = 0; i < columns.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, row.get(columns[i]));
+                }
+                if (statement.executeInsert() != -1) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+
+        if (count > 0) {
+            // notify of changes in db
+            notifyChange(uri);
+        }
+
+        return count;
+    }
+
+    /**
+     * Applies all operations in one transaction, changes are notified once per uri after the
+     * transaction succeeded.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        Log.d(Constants.TAG, "applyBatch(count=" + operations.size() + ")");
+
+        final SQLiteDatabase db = mAdAwayDatabase.getWritableDatabase();
+
+        HashSet<Uri> changes = new HashSet<Uri>();
+        mBatchChanges.set(changes);
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+        }
+
+        for (Uri uri : changes) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+
+        return results;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -239,7 +335,7 @@ public class AdAwayProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -277,11 +373,50 @@ public class AdAwayProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
 
+    /**
+     * Notify observers of uri, collected until the end of the transaction inside of applyBatch()
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private static String getTable(Uri uri) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case HOSTS_SOURCES:
+                return Tables.HOSTS_SOURCES;
+            case WHITELIST:
+                return Tables.WHITELIST;
+            case BLACKLIST:
+                return Tables.BLACKLIST;
+            case REDIRECTION_LIST:
+                return Tables.REDIRECTION_LIST;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+    }
+
+    private static String buildPlaceholders(int count) {
+        StringBuilder placeholders = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                placeholders.append(',');
+            }
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+
     /**
      * Build default selection statement. If no extra selection is specified only build where clause
      * with rowId
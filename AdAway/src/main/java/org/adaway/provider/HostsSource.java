@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.provider;
+
+/**
+ * Immutable copy of one row of the hosts sources table, can be handed to download threads instead
+ * of a Cursor
+ */
+public class HostsSource {
+    private final long mId;
+    private final String mUrl;
+    private final long mLastModifiedLocal;
+    private final long mLastModifiedOnline;
+    private final String mEtag;
+
+    public HostsSource(long id, String url, long lastModifiedLocal, long lastModifiedOnline,
+            String etag) {
+        mId = id;
+        mUrl = url;
+        mLastModifiedLocal = lastModifiedLocal;
+        mLastModifiedOnline = lastModifiedOnline;
+        mEtag = etag;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public long getLastModifiedLocal() {
+        return mLastModifiedLocal;
+    }
+
+    public long getLastModifiedOnline() {
+        return mLastModifiedOnline;
+    }
+
+    /**
+     * @return ETag of the applied copy of this hosts source, null if unknown
+     */
+    public String getEtag() {
+        return mEtag;
+    }
+
+    @Override
+    public String toString() {
+        return mUrl;
+    }
+}
@@ -22,16 +22,20 @@ package org.adaway.provider;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Set;
 
 import org.adaway.provider.AdAwayContract.Blacklist;
 import org.adaway.provider.AdAwayContract.HostsSources;
 import org.adaway.provider.AdAwayContract.RedirectionList;
 import org.adaway.provider.AdAwayContract.Whitelist;
+import org.adaway.util.Constants;
+import org.adaway.util.HostnameSet;
+import org.adaway.util.Log;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 
 import gnu.trove.set.hash.THashSet;
 import gnu.trove.map.hash.THashMap;
@@ -84,13 +88,51 @@ public class ProviderHelper {
                 null, null);
     }
 
+    public static void updateHostsSourceEtag(Context context, long rowId, String etag) {
+        ContentValues values = new ContentValues();
+        values.put(HostsSources.ETAG, etag);
+        context.getContentResolver().update(HostsSources.buildUri(Long.toString(rowId)), values,
+                null, null);
+    }
+
     public static Cursor getEnabledHostsSourcesCursor(Context context) {
         return context.getContentResolver().query(
                 HostsSources.CONTENT_URI,
                 new String[] { HostsSources._ID, HostsSources.URL,
                         HostsSources.LAST_MODIFIED_LOCAL, HostsSources.LAST_MODIFIED_ONLINE,
-                        HostsSources.ENABLED }, HostsSources.ENABLED + "=1", null,
-                HostsSources.DEFAULT_SORT);
+                        HostsSources.ENABLED, HostsSources.ETAG }, HostsSources.ENABLED + "=1",
+                null, HostsSources.DEFAULT_SORT);
+    }
+
+    /**
+     * Returns all hosts sources that are enabled, in the order of getEnabledHostsSourcesCursor
+     * 
+     * @param context
+     * @return
+     */
+    public static ArrayList<HostsSource> getEnabledHostsSources(Context context) {
+        ArrayList<HostsSource> list = new ArrayList<HostsSource>();
+        Cursor cursor = getEnabledHostsSourcesCursor(context);
+
+        if (cursor.moveToFirst()) {
+            int idCol = cursor.getColumnIndexOrThrow(HostsSources._ID);
+            int urlCol = cursor.getColumnIndexOrThrow(HostsSources.URL);
+            int lastModifiedLocalCol = cursor
+                    .getColumnIndexOrThrow(HostsSources.LAST_MODIFIED_LOCAL);
+            int lastModifiedOnlineCol = cursor
+                    .getColumnIndexOrThrow(HostsSources.LAST_MODIFIED_ONLINE);
+            int etagCol = cursor.getColumnIndexOrThrow(HostsSources.ETAG);
+            do {
+                list.add(new HostsSource(cursor.getLong(idCol), cursor.getString(urlCol), cursor
+                        .getLong(lastModifiedLocalCol), cursor.getLong(lastModifiedOnlineCol),
+                        cursor.getString(etagCol)));
+            } while (cursor.moveToNext());
+        }
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+
+        return list;
     }
 
     /**
@@ -200,27 +242,50 @@ public class ProviderHelper {
     }
 
     /**
-     * Imports blacklist from THashSet<String> into database of AdAway
+     * Returns all blacklist items, that are enabled as HostnameSet, without keeping a String per
+     * item
      * 
      * @param context
-     * @param whitelist
+     * @return
      */
-    public static void importBlacklist(Context context, THashSet<String> blacklist) {
-        ContentValues[] values = new ContentValues[blacklist.size()];
-
-        // build values array based on THashSet
-        Iterator<String> itr = blacklist.iterator();
-        int i = 0;
-        while (itr.hasNext()) {
-            values[i] = new ContentValues();
-            values[i].put(Blacklist.HOSTNAME, itr.next());
-            values[i].put(Blacklist.ENABLED, true); // default is enabled
-
-            i++;
+    public static HostnameSet getEnabledBlacklistHostnameSet(Context context) {
+        Cursor cursor = getEnabledBlacklistCursor(context);
+        HostnameSet list = new HostnameSet(cursor.getCount(), false);
+
+        if (cursor.moveToFirst()) {
+            int hostnameColumn = cursor.getColumnIndexOrThrow(Blacklist.HOSTNAME);
+            do {
+                String hostname = cursor.getString(hostnameColumn);
+                if (HostnameSet.isAscii(hostname)) {
+                    list.add(hostname);
+                } else {
+                    Log.w(Constants.TAG, "Skipping blacklist item that is not ASCII: " + hostname);
+                }
+            } while (cursor.moveToNext());
+        }
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
         }
 
-        // insert as bulk operation
-        context.getContentResolver().bulkInsert(Blacklist.CONTENT_URI, values);
+        return list;
+    }
+
+    /**
+     * Imports blacklist from Set<String> into database of AdAway in batches
+     * 
+     * @param context
+     * @param blacklist
+     */
+    public static void importBlacklist(Context context, Set<String> blacklist) {
+        BatchInserter inserter = new BatchInserter(context, Blacklist.CONTENT_URI,
+                blacklist.size());
+        for (String hostname : blacklist) {
+            ContentValues values = new ContentValues();
+            values.put(Blacklist.HOSTNAME, hostname);
+            values.put(Blacklist.ENABLED, true); // default is enabled
+            inserter.add(values);
+        }
+        inserter.finish();
     }
 
     /* WHITELIST */
@@ -279,27 +344,21 @@ public class ProviderHelper {
     }
 
     /**
-     * Imports whitelist from THashSet<String> into database of AdAway
+     * Imports whitelist from THashSet<String> into database of AdAway in batches
      * 
      * @param context
      * @param whitelist
      */
     public static void importWhitelist(Context context, THashSet<String> whitelist) {
-        ContentValues[] values = new ContentValues[whitelist.size()];
-
-        // build values array based on THashSet
-        Iterator<String> itr = whitelist.iterator();
-        int i = 0;
-        while (itr.hasNext()) {
-            values[i] = new ContentValues();
-            values[i].put(Whitelist.HOSTNAME, itr.next());
-            values[i].put(Whitelist.ENABLED, true); // default is enabled
-
-            i++;
+        BatchInserter inserter = new BatchInserter(context, Whitelist.CONTENT_URI,
+                whitelist.size());
+        for (String hostname : whitelist) {
+            ContentValues values = new ContentValues();
+            values.put(Whitelist.HOSTNAME, hostname);
+            values.put(Whitelist.ENABLED, true); // default is enabled
+            inserter.add(values);
         }
-
-        // insert as bulk operation
-        context.getContentResolver().bulkInsert(Whitelist.CONTENT_URI, values);
+        inserter.finish();
     }
 
     /* REDIRECTION LIST */
@@ -359,28 +418,136 @@ public class ProviderHelper {
     }
 
     /**
-     * Imports redirection list from THashMap<String, String> into database of AdAway, where keys are
-     * hostnames and values are ip addresses.
+     * Imports redirection list from THashMap<String, String> into database of AdAway in batches,
+     * where keys are hostnames and values are ip addresses. Existing redirections are kept. If a
+     * hostname has been inserted by an earlier batch of the same import, its ip is updated, so
+     * the last redirection of a file wins like within one batch.
      * 
      * @param context
-     * @param whitelist
+     * @param redirectionList
+     * @param imported
+     *            hostnames inserted by earlier batches of this import, inserted hostnames are
+     *            added to it
      */
     public static void importRedirectionList(Context context,
-            THashMap<String, String> redirectionList) {
-        ContentValues[] values = new ContentValues[redirectionList.size()];
+            THashMap<String, String> redirectionList, THashSet<String> imported) {
+        THashMap<String, Long> existing = getRedirectionListRowIds(context,
+                redirectionList.keySet());
 
-        int i = 0;
+        BatchInserter inserter = new BatchInserter(context, RedirectionList.CONTENT_URI,
+                redirectionList.size());
         for (HashMap.Entry<String, String> item : redirectionList.entrySet()) {
-            values[i] = new ContentValues();
-            values[i].put(RedirectionList.HOSTNAME, item.getKey());
-            values[i].put(RedirectionList.IP, item.getValue());
-            values[i].put(RedirectionList.ENABLED, true); // default is enabled
+            String hostname = item.getKey();
+            Long rowId = existing.get(hostname);
+            if (rowId == null) {
+                ContentValues values = new ContentValues();
+                values.put(RedirectionList.HOSTNAME, hostname);
+                values.put(RedirectionList.IP, item.getValue());
+                values.put(RedirectionList.ENABLED, true); // default is enabled
+                inserter.add(values);
+                imported.add(hostname);
+            } else if (imported.contains(hostname)) {
+                ContentValues values = new ContentValues();
+                values.put(RedirectionList.IP, item.getValue());
+                context.getContentResolver().update(
+                        RedirectionList.buildUri(Long.toString(rowId)), values, null, null);
+            }
+        }
+        inserter.finish();
+    }
+
+    /**
+     * Returns row ids of the given hostnames that are in the redirection list, queried in chunks
+     * to stay below the limit of SQLite for arguments
+     */
+    private static THashMap<String, Long> getRedirectionListRowIds(Context context,
+            Set<String> hostnames) {
+        THashMap<String, Long> rowIds = new THashMap<String, Long>();
+        ArrayList<String> chunk = new ArrayList<String>(MAX_SELECTION_ARGS);
+        for (String hostname : hostnames) {
+            chunk.add(hostname);
+            if (chunk.size() == MAX_SELECTION_ARGS) {
+                queryRedirectionListRowIds(context, chunk, rowIds);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            queryRedirectionListRowIds(context, chunk, rowIds);
+        }
+        return rowIds;
+    }
+
+    private static void queryRedirectionListRowIds(Context context, ArrayList<String> hostnames,
+            THashMap<String, Long> rowIds) {
+        StringBuilder selection = new StringBuilder(RedirectionList.HOSTNAME + " IN (");
+        for (int i = 0; i < hostnames.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+
+        Cursor cursor = context.getContentResolver().query(RedirectionList.CONTENT_URI,
+                new String[] { RedirectionList._ID, RedirectionList.HOSTNAME },
+                selection.toString(), hostnames.toArray(new String[hostnames.size()]), null);
+        if (cursor == null) {
+            return;
+        }
 
-            i++;
+        if (cursor.moveToFirst()) {
+            do {
+                rowIds.put(cursor.getString(cursor.getColumnIndexOrThrow(RedirectionList.HOSTNAME)),
+                        cursor.getLong(cursor.getColumnIndexOrThrow(RedirectionList._ID)));
+            } while (cursor.moveToNext());
         }
+        cursor.close();
+    }
+
+    /* IMPORT */
+
+    // SQLite allows 999 arguments per statement
+    private static final int MAX_SELECTION_ARGS = 500;
+
+    /**
+     * Collects values and inserts them with one bulkInsert per batch, so that every batch is one
+     * transaction in AdAwayProvider
+     */
+    private static class BatchInserter {
+        private final Context mContext;
+        private final Uri mUri;
+
+        private final ContentValues[] mBatch;
+        private int mCount;
 
-        // insert as bulk operation
-        context.getContentResolver().bulkInsert(RedirectionList.CONTENT_URI, values);
+        BatchInserter(Context context, Uri uri, int total) {
+            mContext = context;
+            mUri = uri;
+            mBatch = new ContentValues[Math.max(1, Math.min(Constants.IMPORT_BATCH_SIZE, total))];
+        }
+
+        void add(ContentValues values) {
+            mBatch[mCount++] = values;
+            if (mCount == mBatch.length) {
+                flush();
+            }
+        }
+
+        void finish() {
+            if (mCount > 0) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            ContentValues[] batch = mBatch;
+            if (mCount < batch.length) {
+                batch = new ContentValues[mCount];
+                System.arraycopy(mBatch, 0, batch, 0, mCount);
+            }
+
+            // insert as bulk operation
+            mContext.getContentResolver().bulkInsert(mUri, batch);
+
+            mCount = 0;
+        }
     }
 
 }
@@ -20,35 +20,44 @@
 
 package org.adaway.service;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
+import java.io.OutputStream;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.adaway.R;
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.helper.ResultHelper;
+import org.adaway.provider.HostsSource;
 import org.adaway.provider.ProviderHelper;
-import org.adaway.provider.AdAwayContract.HostsSources;
 import org.adaway.ui.BaseActivity;
 import org.adaway.util.ApplyUtils;
 import org.adaway.util.CommandException;
 import org.adaway.util.Constants;
+import org.adaway.util.DnsmasqUtils;
+import org.adaway.util.DownloadInputStream;
+import org.adaway.util.DownloadUtils;
+import org.adaway.util.HostsFileWriter;
 import org.adaway.util.HostsParser;
 import org.adaway.util.Log;
 import org.adaway.util.NotEnoughSpaceException;
 import org.adaway.util.RemountException;
+import org.adaway.util.SourceBodyCache;
+import org.adaway.util.SourceSnapshotCache;
 import org.adaway.util.StatusCodes;
 import org.adaway.util.Utils;
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 
@@ -57,7 +66,6 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 
 public class ApplyService extends WakefulIntentService {
     private Context mService;
@@ -67,6 +75,13 @@ public class ApplyService extends WakefulIntentService {
     private int mNumberOfFailedDownloads;
     private int mNumberOfDownloads;
 
+    // hosts sources parsed while downloading, null if downloaded into a file
+    private HostsParser mParser;
+    private SourceSnapshotCache mSnapshotCache;
+    private SourceBodyCache mBodyCache;
+    // ETags of downloaded hosts sources by id, saved after applying
+    private HashMap<Long, String> mDownloadedEtags;
+
     private static final int APPLY_NOTIFICATION_ID = 20;
 
     public ApplyService() {
@@ -123,20 +138,31 @@ public class ApplyService extends WakefulIntentService {
     }
 
     /**
-     * Downloads files from hosts sources
+     * Downloads files from hosts sources. If enabled in preferences they are parsed directly while
+     * downloading, otherwise they are saved into one file, which is parsed in apply(). When parsing
+     * while downloading, sources that did not change since the last download are loaded from their
+     * snapshot instead.
+     * <p/>
+     * Sources are downloaded in parallel, up to the number of parallel downloads in preferences.
+     * The results are combined in the order of the hosts sources, so the outcome does not depend on
+     * which download finishes first.
+     * <p/>
+     * Every downloaded source is kept as last known good copy. If a source fails or there is no
+     * connection, its cached copy is used instead.
      *
      * @return return code
      */
     private int download() {
-        Cursor enabledHostsSourcesCursor;
-
-        byte data[];
-        int count;
-        long currentLastModifiedOnline;
-
         int returnCode = StatusCodes.SUCCESS; // default return code
 
-        if (Utils.isAndroidOnline(mService)) {
+        mBodyCache = new SourceBodyCache(mService);
+        ArrayList<HostsSource> sources = ProviderHelper.getEnabledHostsSources(mService);
+        final boolean online = Utils.isAndroidOnline(mService);
+
+        if (online || hasCachedCopy(sources)) {
+            if (!online) {
+                Log.d(Constants.TAG, "No connection, using cached copies of hosts sources");
+            }
 
             showApplyNotification(mService, mService.getString(R.string.download_dialog),
                     mService.getString(R.string.download_dialog),
@@ -144,113 +170,145 @@ public class ApplyService extends WakefulIntentService {
 
             // output to write into
             FileOutputStream out = null;
+            mParser = null;
+            mSnapshotCache = null;
+            mDownloadedEtags = new HashMap<Long, String>();
 
-            try {
-                out = mService.openFileOutput(Constants.DOWNLOADED_HOSTS_FILENAME,
-                        Context.MODE_PRIVATE);
-
-                mNumberOfFailedDownloads = 0;
-                mNumberOfDownloads = 0;
-
-                // get cursor over all enabled hosts source
-                enabledHostsSourcesCursor = ProviderHelper.getEnabledHostsSourcesCursor(mService);
+            // Use whitelist and/or redirection rules from hosts sources only if enabled in
+            // preferences
+            final boolean whitelistRules = PreferenceHelper.getWhitelistRules(mService);
+            final boolean redirectionRules = PreferenceHelper.getRedirectionRules(mService);
 
-                // iterate over all hosts sources in db with cursor
-                if (enabledHostsSourcesCursor.moveToFirst()) {
-                    do {
+            ArrayList<File> partFiles = new ArrayList<File>();
+            ExecutorService executor = DownloadUtils.newDownloadExecutor(mService, sources.size());
 
-                        mNumberOfDownloads++;
-
-                        InputStream is = null;
-                        BufferedInputStream bis = null;
-                        String currentUrl = enabledHostsSourcesCursor
-                                .getString(enabledHostsSourcesCursor.getColumnIndex("url"));
-
-                        try {
-                            Log.v(Constants.TAG, "Downloading hosts file: " + currentUrl);
-
-                            /* change URL in download dialog */
-                            updateApplyNotification(mService,
-                                    mService.getString(R.string.download_dialog), currentUrl);
-
-                            /* build connection */
-                            URL mURL = new URL(currentUrl);
-                            URLConnection connection = mURL.openConnection();
+            try {
+                if (PreferenceHelper.getParseWhileDownloading(mService)) {
+                    mParser = new HostsParser(whitelistRules, redirectionRules);
+                    mSnapshotCache = new SourceSnapshotCache(mService, whitelistRules,
+                            redirectionRules);
+                } else {
+                    out = mService.openFileOutput(Constants.DOWNLOADED_HOSTS_FILENAME,
+                            Context.MODE_PRIVATE);
+                }
 
-                            /* connect */
-                            connection.connect();
-                            is = connection.getInputStream();
+                mNumberOfFailedDownloads = 0;
+                mNumberOfDownloads = sources.size();
+                // sources neither downloaded nor cached
+                int numberOfMissingSources = 0;
+
+                // start all downloads, the executor limits how many run at the same time
+                ArrayList<Future<DownloadResult>> results = new ArrayList<Future<DownloadResult>>();
+                for (int i = 0; i < sources.size(); i++) {
+                    final String url = sources.get(i).getUrl();
+                    final File partFile;
+                    if (mParser == null) {
+                        partFile = mService.getFileStreamPath(Constants.DOWNLOADED_HOSTS_FILENAME
+                                + "." + i);
+                        partFiles.add(partFile);
+                    } else {
+                        partFile = null;
+                    }
 
-                            bis = new BufferedInputStream(is);
-                            if (is == null) {
-                                Log.e(Constants.TAG, "Stream is null");
+                    results.add(executor.submit(new Callable<DownloadResult>() {
+                        @Override
+                        public DownloadResult call() throws IOException {
+                            if (!online) {
+                                DownloadResult cached = loadCachedSource(url, partFile,
+                                        whitelistRules, redirectionRules);
+                                if (cached == null) {
+                                    throw new IOException("No connection and no cached copy");
+                                }
+                                return cached;
                             }
 
-                            /* download with progress */
-                            data = new byte[1024];
-                            count = 0;
-
-                            // run while only when thread is not cancelled
-                            while ((count = bis.read(data)) != -1) {
-                                out.write(data, 0, count);
+                            try {
+                                return downloadSource(url, partFile, true, whitelistRules,
+                                        redirectionRules);
+                            } catch (IOException e) {
+                                DownloadResult cached = null;
+                                try {
+                                    cached = loadCachedSource(url, partFile, whitelistRules,
+                                            redirectionRules);
+                                } catch (IOException cacheException) {
+                                    Log.e(Constants.TAG, "Cached copy of " + url
+                                            + " can not be used", cacheException);
+                                }
+                                if (cached == null) {
+                                    throw e;
+                                }
+                                Log.e(Constants.TAG, "Exception while downloading from " + url
+                                        + ", using cached copy", e);
+                                return cached;
                             }
+                        }
+                    }));
+                }
 
-                            // add line seperator to add files together in one file
-                            out.write(Constants.LINE_SEPERATOR.getBytes());
+                // combine results in order of hosts sources
+                for (int i = 0; i < sources.size(); i++) {
+                    HostsSource source = sources.get(i);
 
-                            // save last modified online for later use
-                            currentLastModifiedOnline = connection.getLastModified();
+                    /* change URL in download dialog */
+                    updateApplyNotification(mService,
+                            mService.getString(R.string.download_dialog), source.getUrl());
 
-                            ProviderHelper.updateHostsSourceLastModifiedOnline(mService,
-                                    enabledHostsSourcesCursor.getInt(enabledHostsSourcesCursor
-                                            .getColumnIndex(HostsSources._ID)),
-                                    currentLastModifiedOnline
-                            );
+                    try {
+                        DownloadResult result = results.get(i).get();
 
-                        } catch (IOException e) {
-                            Log.e(Constants.TAG, "Exception while downloading from " + currentUrl,
-                                    e);
+                        if (mParser != null) {
+                            mParser.merge(result.mParser);
+                        } else {
+                            appendFile(partFiles.get(i), out);
+                            // add line seperator to add files together in one file
+                            out.write(Constants.LINE_SEPERATOR.getBytes());
+                        }
 
+                        // only this thread writes to the database, one source after another
+                        if (result.mCached) {
                             mNumberOfFailedDownloads++;
 
-                            // set last_modified_online of failed download to 0 (not available)
+                            // cached copy is not up to date, last_modified_online not available
                             ProviderHelper.updateHostsSourceLastModifiedOnline(mService,
-                                    enabledHostsSourcesCursor.getInt(enabledHostsSourcesCursor
-                                            .getColumnIndex(HostsSources._ID)), 0
-                            );
-                        } finally {
-                            // flush and close streams
-                            try {
-                                if (out != null) {
-                                    out.flush();
-                                }
-                                if (bis != null) {
-                                    bis.close();
-                                }
-                                if (is != null) {
-                                    is.close();
-                                }
-                            } catch (Exception e) {
-                                Log.e(Constants.TAG, "Exception on flush and closing streams.", e);
-                            }
+                                    source.getId(), 0);
+                        } else {
+                            ProviderHelper.updateHostsSourceLastModifiedOnline(mService,
+                                    source.getId(), result.mLastModifiedOnline);
+                            mDownloadedEtags.put(source.getId(), result.mEtag);
                         }
+                    } catch (ExecutionException e) {
+                        Log.e(Constants.TAG, "Exception while downloading from " + source.getUrl(),
+                                e.getCause());
+
+                        mNumberOfFailedDownloads++;
+                        numberOfMissingSources++;
 
-                    } while (enabledHostsSourcesCursor.moveToNext());
+                        // set last_modified_online of failed download to 0 (not available)
+                        ProviderHelper.updateHostsSourceLastModifiedOnline(mService,
+                                source.getId(), 0);
+                    }
                 }
 
-                // close cursor in the end
-                if (enabledHostsSourcesCursor != null && !enabledHostsSourcesCursor.isClosed()) {
-                    enabledHostsSourcesCursor.close();
+                // remove cached copies of sources that are not enabled anymore
+                ArrayList<String> urls = new ArrayList<String>();
+                for (HostsSource source : sources) {
+                    urls.add(source.getUrl());
+                }
+                mBodyCache.retain(urls);
+                if (mSnapshotCache != null) {
+                    mSnapshotCache.retain(urls);
                 }
 
-                // if all downloads failed return download_fail error
-                if (mNumberOfDownloads == mNumberOfFailedDownloads && mNumberOfDownloads != 0) {
-                    returnCode = StatusCodes.DOWNLOAD_FAIL;
+                // if all downloads failed without cached copies return download_fail error
+                if (mNumberOfDownloads == numberOfMissingSources && mNumberOfDownloads != 0) {
+                    returnCode = online ? StatusCodes.DOWNLOAD_FAIL : StatusCodes.NO_CONNECTION;
                 }
             } catch (Exception e) {
                 Log.e(Constants.TAG, "Private File can not be created, Exception: " + e);
                 returnCode = StatusCodes.PRIVATE_FILE_FAIL;
             } finally {
+                executor.shutdownNow();
+
                 try {
                     if (out != null) {
                         out.close();
@@ -258,6 +316,10 @@ public class ApplyService extends WakefulIntentService {
                 } catch (Exception e) {
                     Log.e(Constants.TAG, "Exception on close of out.", e);
                 }
+
+                for (File partFile : partFiles) {
+                    partFile.delete();
+                }
             }
         } else {
             returnCode = StatusCodes.NO_CONNECTION;
@@ -266,6 +328,195 @@ public class ApplyService extends WakefulIntentService {
         return returnCode;
     }
 
+    /**
+     * Downloads one hosts source, runs on a thread of the download executor. Does not touch the
+     * database, this is done in order by download().
+     * <p/>
+     * When parsing while downloading, the request is conditional on the headers of the snapshot of
+     * this source. If the server answers 304 Not Modified, the snapshot is used without
+     * downloading the body.
+     *
+     * @param url         url of hosts source
+     * @param partFile    file to save the source into, null to parse while downloading
+     * @param conditional send headers of snapshot
+     * @return headers of the source and its parser if parsed while downloading
+     * @throws IOException
+     */
+    private DownloadResult downloadSource(String url, File partFile, boolean conditional,
+                                          boolean whitelistRules, boolean redirectionRules)
+            throws IOException {
+        DownloadInputStream is = null;
+        SourceBodyCache.CachingInputStream body = null;
+        OutputStream os = null;
+
+        try {
+            Log.v(Constants.TAG, "Downloading hosts file: " + url);
+
+            /* build connection */
+            URLConnection connection = DownloadUtils.openConnection(url);
+
+            SourceSnapshotCache.Validators validators = null;
+            if (partFile == null && conditional) {
+                validators = mSnapshotCache.getValidators(url);
+                if (validators != null) {
+                    DownloadUtils.setValidators(connection, validators.lastModified,
+                            validators.etag);
+                }
+            }
+
+            /* connect */
+            connection.connect();
+
+            DownloadResult result = new DownloadResult();
+
+            if (validators != null && DownloadUtils.isNotModified(connection)) {
+                DownloadUtils.disconnect(connection);
+                Log.d(Constants.TAG, "Hosts file not modified: " + url);
+
+                result.mLastModifiedOnline = validators.lastModified;
+                result.mEtag = validators.etag;
+                result.mParser = mSnapshotCache.load(url, validators.lastModified,
+                        validators.etag);
+                if (result.mParser == null) {
+                    // snapshot broken after reading its headers, download without conditions
+                    return downloadSource(url, partFile, false, whitelistRules,
+                            redirectionRules);
+                }
+                return result;
+            }
+
+            // save headers for later use
+            result.mLastModifiedOnline = connection.getLastModified();
+            result.mEtag = DownloadUtils.getEtag(connection);
+
+            if (partFile == null) {
+                result.mParser = mSnapshotCache.load(url, result.mLastModifiedOnline,
+                        result.mEtag);
+
+                if (result.mParser == null) {
+                    /* parse while downloading */
+                    is = DownloadInputStream.open(connection);
+                    body = mBodyCache.cache(url, is);
+                    result.mParser = new HostsParser(body, whitelistRules, redirectionRules);
+                    body.commit();
+                    mSnapshotCache.save(url, result.mLastModifiedOnline, result.mEtag,
+                            result.mParser);
+                } else {
+                    // unchanged, body is not needed
+                    DownloadUtils.disconnect(connection);
+                }
+            } else {
+                is = DownloadInputStream.open(connection);
+                body = mBodyCache.cache(url, is);
+                os = new FileOutputStream(partFile);
+                copy(body, os);
+                body.commit();
+            }
+
+            if (is != null) {
+                Log.d(Constants.TAG, "Downloaded hosts file: " + url + ", "
+                        + is.getReceivedCount() + " bytes received, " + is.getCount()
+                        + " bytes decompressed");
+            }
+
+            return result;
+        } finally {
+            // close streams
+            try {
+                if (os != null) {
+                    os.close();
+                }
+                if (body != null) {
+                    body.close();
+                } else if (is != null) {
+                    is.close();
+                }
+            } catch (Exception e) {
+                Log.e(Constants.TAG, "Exception on closing streams.", e);
+            }
+        }
+    }
+
+    /**
+     * Uses last known good copy of hosts source instead of downloading it, runs on a thread of
+     * the download executor
+     *
+     * @param url      url of hosts source
+     * @param partFile file to save the source into, null to parse it
+     * @return result marked as cached or null if there is no cached copy
+     * @throws IOException if cached copy can not be read or is corrupt
+     */
+    private DownloadResult loadCachedSource(String url, File partFile, boolean whitelistRules,
+                                            boolean redirectionRules) throws IOException {
+        InputStream is = mBodyCache.open(url);
+        if (is == null) {
+            return null;
+        }
+
+        OutputStream os = null;
+        try {
+            DownloadResult result = new DownloadResult();
+            result.mCached = true;
+
+            if (partFile == null) {
+                result.mParser = new HostsParser(is, whitelistRules, redirectionRules);
+            } else {
+                os = new FileOutputStream(partFile);
+                copy(is, os);
+            }
+
+            Log.d(Constants.TAG, "Using cached copy of hosts file: " + url);
+            return result;
+        } finally {
+            try {
+                if (os != null) {
+                    os.close();
+                }
+                is.close();
+            } catch (Exception e) {
+                Log.e(Constants.TAG, "Exception on closing streams.", e);
+            }
+        }
+    }
+
+    private boolean hasCachedCopy(ArrayList<HostsSource> sources) {
+        for (HostsSource source : sources) {
+            if (mBodyCache.contains(source.getUrl())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendFile(File file, OutputStream out) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            copy(is, out);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte data[] = new byte[DownloadInputStream.BUFFER_SIZE];
+        int count;
+        while ((count = is.read(data)) != -1) {
+            os.write(data, 0, count);
+        }
+    }
+
+    /**
+     * Outcome of one hosts source, downloaded or cached
+     */
+    private static class DownloadResult {
+        long mLastModifiedOnline;
+        String mEtag;
+        // last known good copy used instead of download
+        boolean mCached;
+        // null if saved into a file
+        HostsParser mParser;
+    }
+
     /**
      * Apply hosts file
      *
@@ -277,18 +528,21 @@ public class ApplyService extends WakefulIntentService {
                 mService.getString(R.string.apply_dialog_hostnames));
 
         int returnCode = StatusCodes.SUCCESS; // default return code
+        boolean dnsmasqConfigChanged = true;
 
         try {
             /* PARSE: parse hosts files to sets of hostnames and comments */
 
-            FileInputStream fis = mService.openFileInput(Constants.DOWNLOADED_HOSTS_FILENAME);
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
-
-            // Use whitelist and/or redirection rules from hosts sources only if enabled in preferences
-            HostsParser parser = new HostsParser(reader, PreferenceHelper.getWhitelistRules(mService), PreferenceHelper.getRedirectionRules(mService));
-
-            fis.close();
+            HostsParser parser = mParser;
+            if (parser == null) {
+                // Use whitelist and/or redirection rules from hosts sources only if enabled in
+                // preferences
+                parser = HostsParser.parseFile(
+                        mService.getFileStreamPath(Constants.DOWNLOADED_HOSTS_FILENAME),
+                        PreferenceHelper.getWhitelistRules(mService),
+                        PreferenceHelper.getRedirectionRules(mService));
+            }
+            mParser = null;
 
             updateApplyNotification(mService, mService.getString(R.string.apply_dialog),
                     mService.getString(R.string.apply_dialog_lists));
@@ -298,7 +552,7 @@ public class ApplyService extends WakefulIntentService {
             // add whitelist from db
             parser.addWhitelist(ProviderHelper.getEnabledWhitelistHashSet(mService));
             // add blacklist from db
-            parser.addBlacklist(ProviderHelper.getEnabledBlacklistHashSet(mService));
+            parser.addBlacklist(ProviderHelper.getEnabledBlacklistHostnameSet(mService));
             // add redirection list from db
             parser.addRedirectionList(ProviderHelper.getEnabledRedirectionListHashMap(mService));
 
@@ -314,57 +568,14 @@ public class ApplyService extends WakefulIntentService {
             updateApplyNotification(mService, mService.getString(R.string.apply_dialog),
                     mService.getString(R.string.apply_dialog_hosts));
 
-            FileOutputStream fos = mService.openFileOutput(Constants.HOSTS_FILENAME,
-                    Context.MODE_PRIVATE);
-
-            // add adaway header
-            String header = Constants.HEADER1 + Constants.LINE_SEPERATOR + Constants.HEADER2
-                    + Constants.LINE_SEPERATOR + Constants.HEADER_SOURCES;
-            fos.write(header.getBytes());
-
-            // write sources into header
-            String source = null;
-            for (String host : enabledHostsSources) {
-                source = Constants.LINE_SEPERATOR + "# " + host;
-                fos.write(source.getBytes());
+            if (PreferenceHelper.getApplyMethod(mService).equals("dnsmasq")) {
+                // dnsmasq is configured instead of building a hosts file
+                dnsmasqConfigChanged = DnsmasqUtils.writeConfig(mService, parser,
+                        PreferenceHelper.getRedirectionIP(mService));
+            } else {
+                writeHostsFile(parser, enabledHostsSources);
             }
 
-            fos.write(Constants.LINE_SEPERATOR.getBytes());
-
-            String redirectionIP = PreferenceHelper.getRedirectionIP(mService);
-
-            // add "127.0.0.1 localhost" entry
-            String localhost = Constants.LINE_SEPERATOR + Constants.LOCALHOST_IPv4 + " "
-                    + Constants.LOCALHOST_HOSTNAME + Constants.LINE_SEPERATOR
-                    + Constants.LOCALHOST_IPv6 + " " + Constants.LOCALHOST_HOSTNAME;
-            fos.write(localhost.getBytes());
-
-            fos.write(Constants.LINE_SEPERATOR.getBytes());
-
-            // write hostnames
-            String line;
-            for (String hostname : parser.getBlacklist()) {
-                line = Constants.LINE_SEPERATOR + redirectionIP + " " + hostname;
-                fos.write(line.getBytes());
-            }
-
-            /* REDIRECTION LIST: write redirection items */
-            String redirectionItemHostname;
-            String redirectionItemIP;
-            for (HashMap.Entry<String, String> item : parser.getRedirectionList().entrySet()) {
-                redirectionItemHostname = item.getKey();
-                redirectionItemIP = item.getValue();
-
-                line = Constants.LINE_SEPERATOR + redirectionItemIP + " " + redirectionItemHostname;
-                fos.write(line.getBytes());
-            }
-
-            // hosts file has to end with new line, when not done last entry won't be
-            // recognized
-            fos.write(Constants.LINE_SEPERATOR.getBytes());
-
-            fos.close();
-
         } catch (FileNotFoundException e) {
             Log.e(Constants.TAG, "file to read or file to write could not be found", e);
 
@@ -384,14 +595,23 @@ public class ApplyService extends WakefulIntentService {
 
         Shell rootShell = null;
         try {
-            rootShell = Shell.startRootShell();
+            rootShell = ShellPool.getRootShellPool().acquire();
         } catch (Exception e) {
             Log.e(Constants.TAG, "Problem opening a root shell!", e);
         }
 
         // copy build hosts file with RootTools, based on target from preferences
         try {
-            if (PreferenceHelper.getApplyMethod(mService).equals("writeToSystem")) {
+            if (PreferenceHelper.getApplyMethod(mService).equals("dnsmasq")) {
+
+                DnsmasqUtils.applyDnsmasq(mService, rootShell, dnsmasqConfigChanged);
+                DnsmasqReceiver.enableReceiver(mService);
+
+                // a hosts file of another apply method would keep blocking whitelisted hostnames
+                if (ApplyUtils.isAdAwayHostsFileInstalled(mService)) {
+                    ApplyUtils.restoreDefaultHostsFile(mService, rootShell);
+                }
+            } else if (PreferenceHelper.getApplyMethod(mService).equals("writeToSystem")) {
 
                 ApplyUtils.copyHostsFile(mService, Constants.ANDROID_SYSTEM_ETC_HOSTS, rootShell);
             } else if (PreferenceHelper.getApplyMethod(mService).equals("writeToDataData")) {
@@ -416,21 +636,50 @@ public class ApplyService extends WakefulIntentService {
         } catch (CommandException e) {
             Log.e(Constants.TAG, "Exception: ", e);
 
-            returnCode = StatusCodes.COPY_FAIL;
+            if (PreferenceHelper.getApplyMethod(mService).equals("dnsmasq")) {
+                returnCode = StatusCodes.APPLY_FAIL;
+            } else {
+                returnCode = StatusCodes.COPY_FAIL;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "default hosts file can not be written", e);
+
+            returnCode = StatusCodes.PRIVATE_FILE_FAIL;
+        }
+
+        // stop dnsmasq after switching back to a hosts file
+        if (returnCode == StatusCodes.SUCCESS
+                && !PreferenceHelper.getApplyMethod(mService).equals("dnsmasq")
+                && DnsmasqUtils.isDnsmasqApplied(mService)) {
+            DnsmasqUtils.stopDnsmasq(mService, rootShell);
+            DnsmasqReceiver.disableReceiver(mService);
         }
 
         // delete generated hosts file from private storage
         mService.deleteFile(Constants.HOSTS_FILENAME);
 
         /*
-         * Set last_modified_local dates in database to last_modified_online, got in download task
+         * Set last_modified_local dates in database to last_modified_online and ETags, got in
+         * download task
          */
         ProviderHelper.updateAllEnabledHostsSourcesLastModifiedLocalFromOnline(mService);
+        if (mDownloadedEtags != null) {
+            for (HashMap.Entry<Long, String> item : mDownloadedEtags.entrySet()) {
+                ProviderHelper.updateHostsSourceEtag(mService, item.getKey(), item.getValue());
+            }
+        }
 
         /* check if hosts file is applied with chosen method */
         // check only if everything before was successful
         if (returnCode == StatusCodes.SUCCESS) {
-            if (PreferenceHelper.getApplyMethod(mService).equals("writeToSystem")) {
+            if (PreferenceHelper.getApplyMethod(mService).equals("dnsmasq")) {
+
+                /* dnsmasq */
+
+                if (!DnsmasqUtils.isDnsmasqRunning(mService, rootShell)) {
+                    returnCode = StatusCodes.APPLY_FAIL;
+                }
+            } else if (PreferenceHelper.getApplyMethod(mService).equals("writeToSystem")) {
 
                 /* /system/etc/hosts */
 
@@ -475,11 +724,8 @@ public class ApplyService extends WakefulIntentService {
             }
         }
 
-        try {
-            rootShell.close();
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "Problem closing the root shell!", e);
-        }
+        // give shell back to pool for the next apply or revert
+        ShellPool.getRootShellPool().release(rootShell);
 
         /* check if APN proxy is set */
         if (returnCode == StatusCodes.SUCCESS) {
@@ -492,6 +738,52 @@ public class ApplyService extends WakefulIntentService {
         return returnCode;
     }
 
+    /**
+     * Build one hosts file out of compiled lists and preferences in private storage
+     */
+    private void writeHostsFile(HostsParser parser, ArrayList<String> enabledHostsSources)
+            throws IOException {
+        FileOutputStream fos = mService.openFileOutput(Constants.HOSTS_FILENAME,
+                Context.MODE_PRIVATE);
+        HostsFileWriter writer = new HostsFileWriter(fos,
+                PreferenceHelper.getRedirectionIP(mService),
+                PreferenceHelper.getCompactHosts(mService));
+
+        // add adaway header
+        String header = Constants.HEADER1 + Constants.LINE_SEPERATOR + Constants.HEADER2
+                + Constants.LINE_SEPERATOR + Constants.HEADER_SOURCES;
+        writer.write(header);
+
+        // write sources into header
+        for (String host : enabledHostsSources) {
+            writer.write(Constants.LINE_SEPERATOR + "# " + host);
+        }
+
+        writer.newLine();
+
+        // add "127.0.0.1 localhost" entry
+        writer.writeEntry(Constants.LOCALHOST_IPv4, Constants.LOCALHOST_HOSTNAME);
+        writer.writeEntry(Constants.LOCALHOST_IPv6, Constants.LOCALHOST_HOSTNAME);
+
+        writer.newLine();
+
+        // write hostnames, subdomains are grouped under their parent domain
+        for (String hostname : parser.getBlacklist()) {
+            writer.writeBlacklistEntry(hostname);
+        }
+
+        /* REDIRECTION LIST: write redirection items */
+        for (HashMap.Entry<String, String> item : parser.getRedirectionList().entrySet()) {
+            writer.writeEntry(item.getValue(), item.getKey());
+        }
+
+        // hosts file has to end with new line, when not done last entry won't be
+        // recognized
+        writer.newLine();
+
+        writer.close();
+    }
+
     /**
      * Creates custom made notification with progress
      */
@@ -21,6 +21,7 @@
 package org.adaway.service;
 
 import org.adaway.util.Constants;
+import org.adaway.util.DnsmasqUtils;
 import org.adaway.util.Log;
 import org.adaway.util.WebserverUtils;
 
@@ -38,6 +39,9 @@ public class BootService extends IntentService {
         // start webserver
         Log.d(Constants.TAG, "BootService: onHandleIntent");
         WebserverUtils.startWebserverOnBoot(getApplicationContext());
+
+        // start dnsmasq and redirect DNS to it again if applied
+        DnsmasqUtils.superviseDnsmasq(getApplicationContext());
     }
 
 }
\ No newline at end of file
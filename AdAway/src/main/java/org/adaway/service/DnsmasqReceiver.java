@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011-2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ * 
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.service;
+
+import org.adaway.util.Constants;
+import org.adaway.util.Log;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+
+/**
+ * Supervises dnsmasq on connectivity changes, it is only enabled while dnsmasq is applied
+ */
+public class DnsmasqReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+            boolean noConnectivity = intent.getBooleanExtra(
+                    ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
+
+            // upstream servers are only known when connected
+            if (!noConnectivity) {
+                Log.d(Constants.TAG, "DnsmasqReceiver invoked, starting DnsmasqService");
+
+                context.startService(new Intent(context, DnsmasqService.class));
+            }
+        }
+    }
+
+    /**
+     * Enables DnsmasqReceiver
+     *
+     * @param context
+     */
+    public static void enableReceiver(Context context) {
+        ComponentName component = new ComponentName(context, DnsmasqReceiver.class);
+
+        context.getPackageManager().setComponentEnabledSetting(component,
+                PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.DONT_KILL_APP);
+    }
+
+    /**
+     * Disables DnsmasqReceiver
+     *
+     * @param context
+     */
+    public static void disableReceiver(Context context) {
+        ComponentName component = new ComponentName(context, DnsmasqReceiver.class);
+
+        context.getPackageManager().setComponentEnabledSetting(component,
+                PackageManager.COMPONENT_ENABLED_STATE_DISABLED, PackageManager.DONT_KILL_APP);
+    }
+}
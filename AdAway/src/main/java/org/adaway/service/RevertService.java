@@ -20,16 +20,17 @@
 
 package org.adaway.service;
 
-import java.io.FileOutputStream;
-
 import org.adaway.R;
+import org.adaway.helper.PreferenceHelper;
 import org.adaway.helper.ResultHelper;
 import org.adaway.ui.BaseActivity;
 import org.adaway.util.ApplyUtils;
 import org.adaway.util.Constants;
+import org.adaway.util.DnsmasqUtils;
 import org.adaway.util.Log;
 import org.adaway.util.StatusCodes;
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 
@@ -58,10 +59,10 @@ public class RevertService extends WakefulIntentService {
         // disable buttons
         BaseActivity.setButtonsDisabledBroadcast(mService, true);
 
+        Shell rootShell = null;
         try {
-            Shell rootShell = Shell.startRootShell();
+            rootShell = ShellPool.getRootShellPool().acquire();
             int revertResult = revert(rootShell);
-            rootShell.close();
 
             Log.d(Constants.TAG, "revert result: " + revertResult);
 
@@ -71,6 +72,8 @@ public class RevertService extends WakefulIntentService {
             ResultHelper.showNotificationBasedOnResult(mService, revertResult, null);
         } catch (Exception e) {
             Log.e(Constants.TAG, "Problem while reverting!", e);
+        } finally {
+            ShellPool.getRootShellPool().release(rootShell);
         }
     }
 
@@ -83,23 +86,19 @@ public class RevertService extends WakefulIntentService {
         BaseActivity.setStatusBroadcast(mService, getString(R.string.status_reverting),
                 getString(R.string.status_reverting_subtitle), StatusCodes.CHECKING);
 
-        // build standard hosts file
         try {
-            FileOutputStream fos = mService.openFileOutput(Constants.HOSTS_FILENAME,
-                    Context.MODE_PRIVATE);
-
-            // default localhost
-            String localhost = Constants.LOCALHOST_IPv4 + " " + Constants.LOCALHOST_HOSTNAME
-                    + Constants.LINE_SEPERATOR + Constants.LOCALHOST_IPv6 + " "
-                    + Constants.LOCALHOST_HOSTNAME;
-            fos.write(localhost.getBytes());
-            fos.close();
-
-            // copy build hosts file with RootTools
-            ApplyUtils.copyHostsFile(mService, Constants.ANDROID_SYSTEM_ETC_HOSTS, shell);
-
-            // delete generated hosts file after applying it
-            mService.deleteFile(Constants.HOSTS_FILENAME);
+            // stop dnsmasq and remove redirection of DNS to it
+            if (DnsmasqUtils.isDnsmasqApplied(mService)) {
+                DnsmasqUtils.stopDnsmasq(mService, shell);
+                DnsmasqReceiver.disableReceiver(mService);
+            }
+
+            // when using dnsmasq the hosts file is only restored if an AdAway hosts file is left
+            // over from another apply method
+            if (!PreferenceHelper.getApplyMethod(mService).equals("dnsmasq")
+                    || ApplyUtils.isAdAwayHostsFileInstalled(mService)) {
+                ApplyUtils.restoreDefaultHostsFile(mService, shell);
+            }
 
             // set status to disabled
             BaseActivity.updateStatusDisabled(mService);
@@ -20,17 +20,23 @@
 
 package org.adaway.service;
 
-import java.net.URL;
+import java.io.IOException;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.adaway.R;
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.helper.ResultHelper;
+import org.adaway.provider.HostsSource;
 import org.adaway.provider.ProviderHelper;
-import org.adaway.provider.AdAwayContract.HostsSources;
 import org.adaway.ui.BaseActivity;
 import org.adaway.util.ApplyUtils;
 import org.adaway.util.Constants;
+import org.adaway.util.DownloadUtils;
 import org.adaway.util.Log;
 import org.adaway.util.StatusCodes;
 import org.adaway.util.DateUtils;
@@ -41,7 +47,6 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
@@ -126,14 +131,13 @@ public class UpdateService extends WakefulIntentService {
     }
 
     /**
-     * Check for updates of hosts sources
+     * Check for updates of hosts sources. Sources are checked in parallel, up to the number of
+     * parallel downloads in preferences. Requests are conditional on Last-Modified and ETag of the
+     * applied copies, unchanged sources are answered with 304 Not Modified without body.
      *
      * @return return code
      */
     private int checkForUpdates() {
-        Cursor enabledHostsSourcesCursor;
-        long currentLastModifiedLocal;
-        long currentLastModifiedOnline;
         boolean updateAvailable = false;
 
         int returnCode = StatusCodes.ENABLED; // default return code
@@ -141,32 +145,31 @@ public class UpdateService extends WakefulIntentService {
         if (Utils.isAndroidOnline(mService)) {
 
             mNumberOfFailedDownloads = 0;
-            mNumberOfDownloads = 0;
 
-            // get cursor over all enabled hosts source
-            enabledHostsSourcesCursor = ProviderHelper.getEnabledHostsSourcesCursor(mService);
-
-            // iterate over all hosts sources in db with cursor
-            if (enabledHostsSourcesCursor != null && enabledHostsSourcesCursor.moveToFirst()) {
-                do {
-
-                    mNumberOfDownloads++;
+            ArrayList<HostsSource> sources = ProviderHelper.getEnabledHostsSources(mService);
+            mNumberOfDownloads = sources.size();
+
+            ExecutorService executor = DownloadUtils.newDownloadExecutor(mService, sources.size());
+            try {
+                // start all checks, the executor limits how many run at the same time
+                ArrayList<Future<CheckResult>> results = new ArrayList<Future<CheckResult>>();
+                for (final HostsSource source : sources) {
+                    results.add(executor.submit(new Callable<CheckResult>() {
+                        @Override
+                        public CheckResult call() throws IOException {
+                            return checkSource(source);
+                        }
+                    }));
+                }
 
-                    // get url and lastModified from db
-                    String currentUrl = enabledHostsSourcesCursor
-                            .getString(enabledHostsSourcesCursor.getColumnIndex("url"));
-                    currentLastModifiedLocal = enabledHostsSourcesCursor
-                            .getLong(enabledHostsSourcesCursor
-                                    .getColumnIndex("last_modified_local"));
+                // evaluate results in order of hosts sources
+                for (int i = 0; i < sources.size(); i++) {
+                    HostsSource source = sources.get(i);
+                    long currentLastModifiedLocal = source.getLastModifiedLocal();
 
                     try {
-                        Log.v(Constants.TAG, "Checking hosts file: " + currentUrl);
-
-                        /* build connection */
-                        URL mURL = new URL(currentUrl);
-                        URLConnection connection = mURL.openConnection();
-
-                        currentLastModifiedOnline = connection.getLastModified();
+                        CheckResult result = results.get(i).get();
+                        long currentLastModifiedOnline = result.mLastModifiedOnline;
 
                         Log.d(Constants.TAG,
                                 "mConnectionLastModified: "
@@ -184,40 +187,30 @@ public class UpdateService extends WakefulIntentService {
                                         currentLastModifiedLocal) + ")"
                         );
 
-                        // check if file is available
-                        connection.connect();
-                        connection.getInputStream();
-
                         // check if update available for this hosts file
-                        if (currentLastModifiedOnline > currentLastModifiedLocal) {
+                        if (result.mUpdateAvailable) {
                             updateAvailable = true;
                         }
 
                         // save last modified online for later viewing in list
                         ProviderHelper.updateHostsSourceLastModifiedOnline(mService,
-                                enabledHostsSourcesCursor.getInt(enabledHostsSourcesCursor
-                                        .getColumnIndex(HostsSources._ID)),
-                                currentLastModifiedOnline
-                        );
+                                source.getId(), currentLastModifiedOnline);
 
-                    } catch (Exception e) {
-                        Log.e(Constants.TAG, "Exception while downloading from " + currentUrl, e);
+                    } catch (ExecutionException e) {
+                        Log.e(Constants.TAG, "Exception while downloading from " + source.getUrl(),
+                                e.getCause());
 
                         mNumberOfFailedDownloads++;
 
                         // set last_modified_online of failed download to 0 (not available)
                         ProviderHelper.updateHostsSourceLastModifiedOnline(mService,
-                                enabledHostsSourcesCursor.getInt(enabledHostsSourcesCursor
-                                        .getColumnIndex(HostsSources._ID)), 0
-                        );
+                                source.getId(), 0);
                     }
-
-                } while (enabledHostsSourcesCursor.moveToNext());
-            }
-
-            // close cursor in the end
-            if (enabledHostsSourcesCursor != null && !enabledHostsSourcesCursor.isClosed()) {
-                enabledHostsSourcesCursor.close();
+                }
+            } catch (InterruptedException e) {
+                Log.e(Constants.TAG, "Interrupted while checking for updates", e);
+            } finally {
+                executor.shutdownNow();
             }
 
             // if all downloads failed return download_fail error
@@ -239,14 +232,61 @@ public class UpdateService extends WakefulIntentService {
             returnCode = StatusCodes.UPDATE_AVAILABLE;
         }
 
-        // check if hosts file is applied
-        if (!ApplyUtils.isHostsFileCorrect(mService, Constants.ANDROID_SYSTEM_ETC_HOSTS)) {
+        // check if AdAway is applied
+        if (!ApplyUtils.isApplied(mService)) {
             returnCode = StatusCodes.DISABLED;
         }
 
         return returnCode;
     }
 
+    /**
+     * Checks if hosts source is available and changed, runs on a thread of the download executor.
+     * The body is never read.
+     *
+     * @param source hosts source
+     * @return Last-Modified of hosts source and if an update is available
+     * @throws IOException if hosts source is not available
+     */
+    private CheckResult checkSource(HostsSource source) throws IOException {
+        Log.v(Constants.TAG, "Checking hosts file: " + source.getUrl());
+
+        /* build connection */
+        URLConnection connection = DownloadUtils.openConnection(source.getUrl());
+        DownloadUtils.setValidators(connection, source.getLastModifiedLocal(), source.getEtag());
+
+        try {
+            connection.connect();
+
+            CheckResult result = new CheckResult();
+            if (DownloadUtils.isNotModified(connection)) {
+                // unchanged since last apply
+                result.mLastModifiedOnline = source.getLastModifiedLocal();
+            } else {
+                // check if file is available
+                DownloadUtils.checkResponse(connection);
+
+                result.mLastModifiedOnline = connection.getLastModified();
+                String etag = DownloadUtils.getEtag(connection);
+                result.mUpdateAvailable = result.mLastModifiedOnline > source
+                        .getLastModifiedLocal()
+                        || (etag != null && source.getEtag() != null && !etag.equals(source
+                        .getEtag()));
+            }
+            return result;
+        } finally {
+            DownloadUtils.disconnect(connection);
+        }
+    }
+
+    /**
+     * Outcome of one successful check
+     */
+    private static class CheckResult {
+        long mLastModifiedOnline;
+        boolean mUpdateAvailable;
+    }
+
     /**
      * Show permanent notification while executing checkForUpdates
      */
@@ -30,6 +30,7 @@ import org.adaway.util.Utils;
 import org.adaway.service.DailyListener;
 import org.adaway.util.WebserverUtils;
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
 import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
 
 import com.actionbarsherlock.app.ActionBar;
@@ -112,9 +113,9 @@ public class PrefsActivity extends SherlockPreferenceActivity {
         WebserverEnabledPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
             @Override
             public boolean onPreferenceChange(Preference preference, Object newValue) {
-                Shell rootShell;
+                Shell rootShell = null;
                 try {
-                    rootShell = Shell.startRootShell();
+                    rootShell = ShellPool.getRootShellPool().acquire();
 
                     if (newValue.equals(true)) {
                         // start webserver
@@ -123,10 +124,10 @@ public class PrefsActivity extends SherlockPreferenceActivity {
                         // stop webserver
                         WebserverUtils.stopWebserver(mActivity, rootShell);
                     }
-
-                    rootShell.close();
                 } catch (Exception e) {
                     Log.e(Constants.TAG, "Problem while starting/stopping webserver!", e);
+                } finally {
+                    ShellPool.getRootShellPool().release(rootShell);
                 }
 
                 return true;
@@ -69,7 +69,7 @@ public class TcpdumpActivity extends SherlockActivity {
         }
 
         // set togglebutton checked if tcpdump is running
-        if (TcpdumpUtils.isTcpdumpRunning(mRootShell)) {
+        if (TcpdumpUtils.isTcpdumpRunning(mActivity, mRootShell)) {
             mTcpdumpToggle.setChecked(true);
         } else {
             mTcpdumpToggle.setChecked(false);
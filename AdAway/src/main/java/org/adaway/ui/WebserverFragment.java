@@ -69,7 +69,7 @@ public class WebserverFragment extends SherlockFragment {
         }
 
         // set togglebutton checked if webserver is running
-        if (WebserverUtils.isWebserverRunning(mRootShell)) {
+        if (WebserverUtils.isWebserverRunning(mActivity, mRootShell)) {
             mWebserverToggle.setChecked(true);
         } else {
             mWebserverToggle.setChecked(false);
@@ -20,8 +20,10 @@
 
 package org.adaway.util;
 
+import org.adaway.helper.PreferenceHelper;
 import org.adaway.util.Log;
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
 import org.sufficientlysecure.rootcommands.Toolbox;
 import org.sufficientlysecure.rootcommands.command.SimpleCommand;
 
@@ -29,9 +31,12 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -75,6 +80,20 @@ public class ApplyUtils {
         }
     }
 
+    /**
+     * Checks if AdAway is applied using the configured apply method. dnsmasq is applied if its
+     * config exists or an AdAway hosts file is left over, all other methods symlink or copy to
+     * /system/etc/hosts.
+     *
+     * @return true if it is applied
+     */
+    public static boolean isApplied(Context context) {
+        if (PreferenceHelper.getApplyMethod(context).equals("dnsmasq")) {
+            return DnsmasqUtils.isDnsmasqApplied(context) || isAdAwayHostsFileInstalled(context);
+        }
+        return isHostsFileCorrect(context, Constants.ANDROID_SYSTEM_ETC_HOSTS);
+    }
+
     /**
      * Checks by reading hosts file if AdAway hosts file is applied or not
      *
@@ -122,6 +141,46 @@ public class ApplyUtils {
         return status;
     }
 
+    /**
+     * Checks if an AdAway hosts file is used as /system/etc/hosts, e.g. one that is left over
+     * after switching to dnsmasq. A missing hosts file is not treated as applied here.
+     *
+     * @return true if /system/etc/hosts exists and starts with the AdAway header
+     */
+    public static boolean isAdAwayHostsFileInstalled(Context context) {
+        return new File(Constants.ANDROID_SYSTEM_ETC_HOSTS).exists()
+                && isHostsFileCorrect(context, Constants.ANDROID_SYSTEM_ETC_HOSTS);
+    }
+
+    /**
+     * Replace /system/etc/hosts by the default hosts file that only contains localhost
+     *
+     * @throws IOException if the default hosts file could not be built in private storage
+     * @throws NotEnoughSpaceException RemountException CopyException
+     */
+    public static void restoreDefaultHostsFile(Context context, Shell shell) throws IOException,
+            NotEnoughSpaceException, RemountException, CommandException {
+        // build standard hosts file
+        FileOutputStream fos = context.openFileOutput(Constants.HOSTS_FILENAME,
+                Context.MODE_PRIVATE);
+        try {
+            // default localhost
+            String localhost = Constants.LOCALHOST_IPv4 + " " + Constants.LOCALHOST_HOSTNAME
+                    + Constants.LINE_SEPERATOR + Constants.LOCALHOST_IPv6 + " "
+                    + Constants.LOCALHOST_HOSTNAME;
+            fos.write(localhost.getBytes());
+        } finally {
+            fos.close();
+        }
+
+        try {
+            copyHostsFile(context, Constants.ANDROID_SYSTEM_ETC_HOSTS, shell);
+        } finally {
+            // delete generated hosts file after applying it
+            context.deleteFile(Constants.HOSTS_FILENAME);
+        }
+    }
+
     /**
      * Copy hosts file from private storage of AdAway to internal partition using RootTools
      *
@@ -140,6 +199,17 @@ public class ApplyUtils {
             throw new CommandException();
         }
 
+        /*
+         * Skip remount and copy if the generated file is the one applied last time and the target
+         * still has the same content
+         */
+        String hash = getMd5(new File(privateFile));
+        if (hash != null && hash.equals(PreferenceHelper.getAppliedHostsHash(context))
+                && hash.equals(getInstalledMd5(target, shell))) {
+            Log.i(Constants.TAG, "Hosts file is unchanged, skipping copy to " + target);
+            return;
+        }
+
         if (!target.equals(Constants.ANDROID_SYSTEM_ETC_HOSTS)) {
             /*
              * If custom target like /data/etc/hosts is set, create missing directories for writing
@@ -165,21 +235,40 @@ public class ApplyUtils {
                 Log.e(Constants.TAG, "Remounting as RW failed! Probably not a problem!");
             }
 
-            // remove before copying when using /system/etc/hosts
-            if (target.equals(Constants.ANDROID_SYSTEM_ETC_HOSTS)) {
-                SimpleCommand command = new SimpleCommand(Constants.COMMAND_RM + " " + target);
-                shell.add(command).waitForFinish();
+            /*
+             * Write to a temp file next to the target and rename it over the target, so the
+             * resolver never sees a missing or half-written hosts file. dd uses large blocks, cat
+             * is the fallback. sync before the rename, otherwise an empty file could be left
+             * after a crash. chcon may fail on devices without SELinux.
+             */
+            String temp = target + Constants.HOSTS_TEMP_SUFFIX;
+            SimpleCommand copyCommand = new SimpleCommand("{ dd if=" + privateFile + " of="
+                    + temp + " " + Constants.DD_BLOCK_SIZE + " || cat " + privateFile + " > "
+                    + temp + "; }");
+            SimpleCommand mvCommand = new SimpleCommand(Constants.COMMAND_MV + " " + temp + " "
+                    + target);
+            shell.addBatch(new SimpleCommand(Constants.COMMAND_RM + " " + temp), copyCommand,
+                    new SimpleCommand(Constants.COMMAND_SYNC),
+                    new SimpleCommand(Constants.COMMAND_CHOWN + " " + temp),
+                    new SimpleCommand(Constants.COMMAND_CHMOD_644 + " " + temp),
+                    new SimpleCommand(Constants.COMMAND_CHCON_SYSTEMFILE + " " + temp)
+            ).waitForFinish();
+
+            // only replace the target with a complete copy
+            if (copyCommand.getExitCode() != 0) {
+                shell.add(new SimpleCommand(Constants.COMMAND_RM + " " + temp)).waitForFinish();
+                throw new CommandException();
             }
 
-            // copy file
-            if (!tb.copyFile(privateFile, target, false, false)) {
+            shell.add(mvCommand).waitForFinish();
+            if (mvCommand.getExitCode() != 0) {
+                shell.add(new SimpleCommand(Constants.COMMAND_RM + " " + temp)).waitForFinish();
                 throw new CommandException();
             }
 
-            // execute commands: chown, chmod
-            SimpleCommand command = new SimpleCommand(Constants.COMMAND_CHOWN + " " + target,
-                    Constants.COMMAND_CHMOD_644 + " " + target);
-            shell.add(command).waitForFinish();
+            if (hash != null) {
+                PreferenceHelper.setAppliedHostsHash(context, hash);
+            }
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception!", e);
 
@@ -195,6 +284,61 @@ public class ApplyUtils {
         }
     }
 
+    /**
+     * Get MD5 of installed hosts file using md5sum of the root shell, the target is read directly
+     * if md5sum is not available, e.g. on toolbox without busybox
+     *
+     * @return hex string or null if target could not be read
+     */
+    private static String getInstalledMd5(String target, Shell shell) {
+        try {
+            SimpleCommand md5Command = new SimpleCommand(Constants.COMMAND_MD5SUM + " " + target);
+            shell.add(md5Command).waitForFinish();
+
+            // output is "hash  filename"
+            String output = md5Command.getOutput().trim();
+            if (md5Command.getExitCode() == 0 && output.length() >= 32
+                    && output.substring(0, 32).matches("[0-9a-f]{32}")) {
+                return output.substring(0, 32);
+            }
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Problem running md5sum on " + target, e);
+        }
+
+        return getMd5(new File(target));
+    }
+
+    /**
+     * @return MD5 of file as hex string or null if it could not be read
+     */
+    static String getMd5(File file) {
+        InputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+
+            return Utils.toHex(digest.digest());
+        } catch (IOException e) {
+            Log.d(Constants.TAG, "Could not read " + file + " for MD5: " + e.getMessage());
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Exception on close of " + file, e);
+            }
+        }
+    }
+
     /**
      * Create symlink from /system/etc/hosts to /data/data/hosts
      *
@@ -203,7 +347,7 @@ public class ApplyUtils {
     public static void createSymlink(String target) throws RemountException, CommandException {
         Shell rootShell = null;
         try {
-            rootShell = Shell.startRootShell();
+            rootShell = ShellPool.getRootShellPool().acquire();
         } catch (Exception e) {
             throw new CommandException("Problem opening root shell!");
         }
@@ -211,32 +355,33 @@ public class ApplyUtils {
 
         /* remount /system/etc for write access */
         if (!tb.remount(Constants.ANDROID_SYSTEM_ETC_HOSTS, "RW")) {
+            ShellPool.getRootShellPool().release(rootShell);
             throw new RemountException();
         }
 
         /* Execute commands */
         try {
-            // create symlink
-            SimpleCommand command = new SimpleCommand(Constants.COMMAND_RM + " "
-                    + Constants.ANDROID_SYSTEM_ETC_HOSTS, Constants.COMMAND_LN + " " + target + " "
-                    + Constants.ANDROID_SYSTEM_ETC_HOSTS,
-                    Constants.COMMAND_CHCON_SYSTEMFILE + " " + target,
-                    Constants.COMMAND_CHOWN + " " + target,
-                    Constants.COMMAND_CHMOD_644 + " " + target
-            );
-
-            rootShell.add(command).waitForFinish();
+            // create symlink, chcon may fail on devices without SELinux
+            SimpleCommand rmCommand = new SimpleCommand(Constants.COMMAND_RM + " "
+                    + Constants.ANDROID_SYSTEM_ETC_HOSTS);
+            SimpleCommand lnCommand = new SimpleCommand(Constants.COMMAND_LN + " " + target + " "
+                    + Constants.ANDROID_SYSTEM_ETC_HOSTS);
+            rootShell.addBatch(rmCommand, lnCommand,
+                    new SimpleCommand(Constants.COMMAND_CHCON_SYSTEMFILE + " " + target),
+                    new SimpleCommand(Constants.COMMAND_CHOWN + " " + target),
+                    new SimpleCommand(Constants.COMMAND_CHMOD_644 + " " + target)
+            ).waitForFinish();
+
+            if (lnCommand.getExitCode() != 0) {
+                throw new CommandException();
+            }
         } catch (Exception e) {
             throw new CommandException();
         } finally {
             // after all remount system back as read only
             tb.remount(Constants.ANDROID_SYSTEM_ETC_HOSTS, "RO");
 
-            try {
-                rootShell.close();
-            } catch (IOException e) {
-                throw new CommandException("Problem closing root shell!");
-            }
+            ShellPool.getRootShellPool().release(rootShell);
         }
     }
 
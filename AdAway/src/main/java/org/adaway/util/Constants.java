@@ -39,6 +39,12 @@ public class Constants {
 
     public static final String DOWNLOADED_HOSTS_FILENAME = "hosts_downloaded";
     public static final String HOSTS_FILENAME = "hosts";
+    public static final String HOSTS_TEMP_SUFFIX = ".tmp";
+    public static final String SNAPSHOT_DIRECTORY = "snapshots";
+    public static final String SOURCE_CACHE_DIRECTORY = "sources";
+    public static final int DOWNLOAD_CONNECT_TIMEOUT = 30 * 1000;
+    public static final int DOWNLOAD_READ_TIMEOUT = 60 * 1000;
+    public static final int IMPORT_BATCH_SIZE = 1000;
     public static final String LINE_SEPERATOR = System.getProperty("line.separator", "\n");
     public static final String FILE_SEPERATOR = System.getProperty("file.separator", "/");
 
@@ -47,14 +53,23 @@ public class Constants {
     public static final String COMMAND_CHMOD_666 = "chmod 666";
     public static final String COMMAND_LN = "ln -s";
     public static final String COMMAND_RM = "rm -f";
+    public static final String COMMAND_MV = "mv -f";
+    public static final String COMMAND_SYNC = "sync";
+    public static final String COMMAND_MD5SUM = "md5sum";
     public static final String COMMAND_MKDIR = "mkdir -p";
     public static final String COMMAND_CHCON_SYSTEMFILE = "chcon u:object_r:system_file:s0";
+    public static final String DD_BLOCK_SIZE = "bs=65536";
 
     public static final String WEBSERVER_EXECUTEABLE = "blank_webserver";
 
     public static final String TCPDUMP_EXECUTEABLE = "tcpdump";
     public static final String TCPDUMP_LOG = "dns_log.txt";
 
+    public static final String DNSMASQ_EXECUTEABLE = "dnsmasq";
+    public static final String DNSMASQ_CONFIG_FILENAME = "dnsmasq.conf";
+    public static final String DNSMASQ_HOSTS_FILENAME = "dnsmasq_hosts";
+    public static final String DNSMASQ_RESOLV_FILENAME = "dnsmasq_resolv.conf";
+
     public static final String ANDROID_SYSTEM_PATH = System.getProperty("java.home", "/system");
     public static final String ANDROID_SYSTEM_ETC_HOSTS = ANDROID_SYSTEM_PATH + FILE_SEPERATOR
             + "etc" + FILE_SEPERATOR + HOSTS_FILENAME;
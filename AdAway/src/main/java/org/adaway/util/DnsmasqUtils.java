@@ -0,0 +1,685 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.adaway.helper.PreferenceHelper;
+import org.adaway.service.DnsmasqService;
+import org.sufficientlysecure.rootcommands.PidRegistry;
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
+import org.sufficientlysecure.rootcommands.Toolbox;
+import org.sufficientlysecure.rootcommands.command.BackgroundExecutableCommand;
+import org.sufficientlysecure.rootcommands.command.ExecutableCommand;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+
+import gnu.trove.set.hash.THashSet;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkInfo;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+
+/**
+ * Blocking by the bundled dnsmasq as local resolver instead of a hosts file, /system is never
+ * remounted. dnsmasq listens on 127.0.0.1 and DNS queries of all other users are redirected to it
+ * with iptables, its own queries to the upstream servers are excluded by its user. dnsmasq is
+ * built without IPv6, so DNS queries over IPv6 are rejected with ip6tables and resolvers fall
+ * back to IPv4. Networks with only IPv6 DNS servers are not supported.
+ * <p/>
+ * dnsmasq 2.51 searches address= entries linearly on every query, while the additional hosts file
+ * is hashed. So only blacklisted domains with blacklisted subdomains are written as
+ * address=/domain/ip, which blocks all their subdomains, and those subdomains are left out. All
+ * other blacklisted hostnames, blacklisted parents of whitelisted hostnames and the redirection
+ * list are written to the additional hosts file, which only matches exact hostnames like a hosts
+ * file. Whitelist entries with wildcards only remove hostnames from the blacklist, they do not
+ * exempt subdomains of a blocked domain.
+ * <p/>
+ * Upstream servers are written to a resolv file, which dnsmasq polls and reloads by itself. The
+ * additional hosts file is reloaded by SIGHUP. dnsmasq does not reload its config file, so a
+ * changed blacklist restarts it: the new instance is started on the other of two ports and DNS is
+ * only redirected to it when it answers, then the old instance is killed.
+ * <p/>
+ * Every instance has its own iptables chain. A watcher in the background removes the jump to the
+ * chain when its instance exits, so DNS never goes to a closed port, and starts DnsmasqService to
+ * restart dnsmasq.
+ * <p/>
+ * Applying, supervising and stopping run in different services, they are serialized on the class,
+ * so the port, the chains and the registered pid are only changed by one of them at a time.
+ */
+public class DnsmasqUtils {
+    private static final int PORT = 5300;
+    private static final int SECOND_PORT = 5301;
+    private static final String USER = "nobody";
+    private static final int CACHE_SIZE = 1000;
+    private static final String IPTABLES_NAT = "iptables -t nat ";
+    private static final String IPTABLES_CHAIN = "adaway_dns_";
+    private static final String IP6TABLES = "ip6tables ";
+    private static final String IP6TABLES_CHAIN = "adaway_dns6";
+    private static final int SIGHUP = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // answered by dnsmasq itself to check that it is serving
+    private static final String CHECK_HOSTNAME = "dnsmasq-check.adaway.invalid";
+    private static final int CHECK_TIMEOUT = 500;
+    private static final int CHECK_TRIES = 6;
+
+    // seconds between checks of the watcher
+    private static final int WATCH_INTERVAL = 5;
+
+    // give up restarting dnsmasq if it dies more often in a short time
+    private static final int MAX_RESTARTS = 3;
+    private static final long RESTART_WINDOW = 60 * 1000;
+    private static long sRestartWindowStart = 0;
+    private static int sRestarts = 0;
+
+    private static final String CONFIG_HEADER = "# This dnsmasq config is generated by AdAway.";
+
+    /**
+     * Write config and additional hosts file of dnsmasq from compiled lists
+     *
+     * @param context
+     * @param parser        parser with compiled lists
+     * @param redirectionIP ip blacklisted domains are redirected to
+     * @return true if the config file changed and dnsmasq has to be restarted
+     * @throws IOException
+     */
+    public static synchronized boolean writeConfig(Context context, HostsParser parser,
+            String redirectionIP) throws IOException {
+        DomainTrie blacklist = parser.getBlacklist();
+
+        // blacklisted parents of whitelisted hostnames can not be blocked with their subdomains
+        THashSet<String> exactOnly = new THashSet<String>();
+        for (String hostname : parser.getWhitelist()) {
+            if (hostname.indexOf('*') != -1 || hostname.indexOf('?') != -1) {
+                continue;
+            }
+            for (int dot = hostname.indexOf('.'); dot != -1; dot = hostname.indexOf('.', dot + 1)) {
+                String parent = hostname.substring(dot + 1);
+                if (blacklist.contains(parent)) {
+                    exactOnly.add(parent);
+                }
+            }
+        }
+
+        File directory = context.getFilesDir();
+        File config = new File(directory, Constants.DNSMASQ_CONFIG_FILENAME);
+        File temp = new File(directory, Constants.DNSMASQ_CONFIG_FILENAME
+                + Constants.HOSTS_TEMP_SUFFIX);
+
+        // domains written with address=, blacklist iterates parent domains before subdomains
+        DomainTrie blocked = new DomainTrie();
+        int exact = 0;
+        int covered = 0;
+
+        Writer configWriter = null;
+        HostsFileWriter hostsWriter = null;
+        try {
+            configWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp)),
+                    BUFFER_SIZE);
+            hostsWriter = new HostsFileWriter(context.openFileOutput(
+                    Constants.DNSMASQ_HOSTS_FILENAME, Context.MODE_PRIVATE), redirectionIP);
+
+            writeOptions(configWriter, directory);
+            hostsWriter.write(Constants.HEADER1);
+
+            // subdomains directly follow their parent in the blacklist
+            Iterator<String> iterator = blacklist.iterator();
+            String hostname = iterator.hasNext() ? iterator.next() : null;
+            while (hostname != null) {
+                String next = iterator.hasNext() ? iterator.next() : null;
+                if (blocked.containsParentOf(hostname)) {
+                    covered++;
+                } else if (exactOnly.contains(hostname) || next == null
+                        || !next.endsWith("." + hostname)) {
+                    hostsWriter.writeBlacklistEntry(hostname);
+                    exact++;
+                } else {
+                    configWriter.write("address=/" + hostname + "/" + redirectionIP + "\n");
+                    blocked.add(hostname);
+                }
+                hostname = next;
+            }
+
+            for (HashMap.Entry<String, String> item : parser.getRedirectionList().entrySet()) {
+                hostsWriter.writeEntry(item.getValue(), item.getKey());
+            }
+            hostsWriter.newLine();
+
+            configWriter.close();
+            configWriter = null;
+            hostsWriter.close();
+            hostsWriter = null;
+        } finally {
+            try {
+                if (configWriter != null) {
+                    configWriter.close();
+                }
+                if (hostsWriter != null) {
+                    hostsWriter.close();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Exception on close of dnsmasq config.", e);
+            }
+        }
+
+        Log.d(Constants.TAG, "Wrote dnsmasq config with " + blocked.size()
+                + " blocked domains and " + exact + " blocked hostnames, " + covered
+                + " subdomains are covered by their parent");
+
+        String oldHash = ApplyUtils.getMd5(config);
+        if (oldHash != null && oldHash.equals(ApplyUtils.getMd5(temp))) {
+            temp.delete();
+            return false;
+        }
+        if (!temp.renameTo(config)) {
+            throw new IOException("Could not rename " + temp + " to " + config);
+        }
+        return true;
+    }
+
+    private static void writeOptions(Writer writer, File directory) throws IOException {
+        writer.write(CONFIG_HEADER + "\n");
+        // port is given on the command line, it changes on every restart
+        writer.write("listen-address=127.0.0.1\n");
+        writer.write("bind-interfaces\n");
+        writer.write("user=" + USER + "\n");
+        // no pid file, /var/run does not exist on Android
+        writer.write("pid-file=\n");
+        writer.write("no-hosts\n");
+        writer.write("addn-hosts=" + new File(directory, Constants.DNSMASQ_HOSTS_FILENAME) + "\n");
+        writer.write("resolv-file=" + new File(directory, Constants.DNSMASQ_RESOLV_FILENAME)
+                + "\n");
+        // forget answers of old upstream servers when the resolv file changes
+        writer.write("clear-on-reload\n");
+        writer.write("cache-size=" + CACHE_SIZE + "\n");
+        writer.write("address=/" + CHECK_HOSTNAME + "/" + Constants.LOCALHOST_IPv4 + "\n");
+    }
+
+    /**
+     * Start dnsmasq with the written config or reload it if it is already running, then redirect
+     * DNS queries to it
+     *
+     * @param context
+     * @param shell
+     * @param restart restart dnsmasq even if it is running, because its config file changed
+     * @throws CommandException
+     */
+    public static synchronized void applyDnsmasq(Context context, Shell shell, boolean restart)
+            throws CommandException {
+        PidRegistry registry = new PidRegistry(context);
+        try {
+            // read by dnsmasq after dropping root
+            shell.add(new SimpleCommand(Constants.COMMAND_CHMOD_644 + " "
+                    + new File(context.getFilesDir(), Constants.DNSMASQ_HOSTS_FILENAME)))
+                    .waitForFinish();
+            writeResolvFile(context, shell);
+
+            if (!restart && registry.signal(shell, Constants.DNSMASQ_EXECUTEABLE, SIGHUP)) {
+                Log.i(Constants.TAG, "Reloaded dnsmasq");
+                addRedirect(shell, getPort(context));
+            } else {
+                // the running instance keeps serving until the new one answers
+                startDnsmasq(context, shell, registry);
+            }
+        } catch (CommandException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Exception while applying dnsmasq", e);
+            throw new CommandException("Problem while applying dnsmasq!");
+        }
+    }
+
+    /**
+     * Restart dnsmasq if it died or does not answer and update its upstream servers and the
+     * redirect. Called by the watcher when dnsmasq exited, on boot and on connectivity changes
+     * while dnsmasq is applied. DNS is not redirected while dnsmasq can not be started.
+     *
+     * @param context
+     */
+    public static synchronized void superviseDnsmasq(Context context) {
+        // checked while holding the lock, a revert may just have stopped dnsmasq
+        if (!isDnsmasqApplied(context)) {
+            return;
+        }
+
+        Shell rootShell = null;
+        try {
+            rootShell = ShellPool.getRootShellPool().acquire();
+            PidRegistry registry = new PidRegistry(context);
+
+            // dnsmasq polls the resolv file, new upstream servers need no restart
+            writeResolvFile(context, rootShell);
+
+            int port = getPort(context);
+            if (registry.isRunning(rootShell, Constants.DNSMASQ_EXECUTEABLE) && isServing(port)) {
+                // iptables rules are lost on reboot
+                addRedirect(rootShell, port);
+                return;
+            }
+
+            // never send DNS to a port nobody answers on
+            removeRedirect(rootShell);
+
+            if (!allowRestart()) {
+                Log.e(Constants.TAG, "dnsmasq died " + MAX_RESTARTS
+                        + " times in a short time, not restarting it");
+                return;
+            }
+
+            Log.i(Constants.TAG, "dnsmasq is not running or not answering, restarting it");
+            registry.kill(rootShell, Constants.DNSMASQ_EXECUTEABLE);
+            startDnsmasq(context, rootShell, registry);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Problem while supervising dnsmasq!", e);
+        } finally {
+            ShellPool.getRootShellPool().release(rootShell);
+        }
+    }
+
+    /**
+     * Remove redirect, stop dnsmasq and delete its files
+     *
+     * @param context
+     * @param shell
+     */
+    public static synchronized void stopDnsmasq(Context context, Shell shell) {
+        try {
+            // remove redirect first, so DNS keeps working
+            removeRedirect(shell);
+            new PidRegistry(context).kill(shell, Constants.DNSMASQ_EXECUTEABLE);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Exception while stopping dnsmasq", e);
+        }
+
+        context.deleteFile(Constants.DNSMASQ_CONFIG_FILENAME);
+        context.deleteFile(Constants.DNSMASQ_HOSTS_FILENAME);
+        context.deleteFile(Constants.DNSMASQ_RESOLV_FILENAME);
+    }
+
+    /**
+     * Checks if dnsmasq has been applied and not stopped since, without root
+     *
+     * @return true if config of dnsmasq exists
+     */
+    public static boolean isDnsmasqApplied(Context context) {
+        return new File(context.getFilesDir(), Constants.DNSMASQ_CONFIG_FILENAME).exists();
+    }
+
+    /**
+     * Checks if dnsmasq is running
+     *
+     * @return true if dnsmasq is running
+     */
+    public static boolean isDnsmasqRunning(Context context, Shell shell) {
+        try {
+            return new PidRegistry(context).isRunning(shell, Constants.DNSMASQ_EXECUTEABLE);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Exception while checking dnsmasq process", e);
+            return false;
+        }
+    }
+
+    /**
+     * Start a new instance on the port that is not in use and redirect DNS to it as soon as it
+     * answers, then kill the old instance. If the new instance does not answer, it is killed and
+     * the old one keeps serving and stays registered.
+     */
+    private static void startDnsmasq(Context context, Shell shell, PidRegistry registry)
+            throws Exception {
+        File config = new File(context.getFilesDir(), Constants.DNSMASQ_CONFIG_FILENAME);
+        int oldPid = registry.get(Constants.DNSMASQ_EXECUTEABLE);
+        int port = getPort(context) == PORT ? SECOND_PORT : PORT;
+
+        // the pid of $! is only valid if dnsmasq does not fork
+        BackgroundExecutableCommand dnsmasqCommand = new BackgroundExecutableCommand(context,
+                Constants.DNSMASQ_EXECUTEABLE, "--keep-in-foreground --port=" + port
+                        + " --conf-file=" + config + " > /dev/null 2>&1");
+
+        Toolbox tb = new Toolbox(shell);
+        int pid = 0;
+        boolean redirected = false;
+        try {
+            if (!registry.start(shell, dnsmasqCommand)) {
+                throw new CommandException("Problem while starting dnsmasq!");
+            }
+            pid = dnsmasqCommand.getPid();
+
+            if (!isServing(port)) {
+                throw new CommandException("dnsmasq does not answer on port " + port + "!");
+            }
+            addRedirect(shell, port);
+            redirected = true;
+        } finally {
+            if (!redirected) {
+                if (pid > 0) {
+                    tb.kill(pid);
+                }
+                // start() replaced the pid of the old instance, which keeps serving
+                registry.set(Constants.DNSMASQ_EXECUTEABLE, oldPid);
+            }
+        }
+        PreferenceHelper.setDnsmasqPort(context, port);
+        watchDnsmasq(context, shell, pid, port);
+
+        if (oldPid > 0 && oldPid != pid && tb.isProcessRunning(oldPid,
+                ExecutableCommand.EXECUTABLE_PREFIX + Constants.DNSMASQ_EXECUTEABLE
+                        + ExecutableCommand.EXECUTABLE_SUFFIX)) {
+            tb.kill(oldPid);
+        }
+        Log.i(Constants.TAG, "Started dnsmasq with pid " + pid + " on port " + port);
+    }
+
+    /**
+     * Start watcher in the background, it removes the jump to the chain of the instance when the
+     * instance exits. If the chain was still in use and dnsmasq is still applied, DnsmasqService
+     * is started to restart dnsmasq. Instances replaced on purpose have no jump anymore.
+     */
+    private static void watchDnsmasq(Context context, Shell shell, int pid, int port)
+            throws Exception {
+        File config = new File(context.getFilesDir(), Constants.DNSMASQ_CONFIG_FILENAME);
+        String service = context.getPackageName() + "/" + DnsmasqService.class.getName();
+
+        shell.add(new SimpleCommand("(while [ -d /proc/" + pid + " ]; do sleep " + WATCH_INTERVAL
+                + "; done; " + IPTABLES_NAT + "-D OUTPUT -j " + IPTABLES_CHAIN + port + " && [ -f "
+                + config + " ] && am startservice -n " + service
+                + ") < /dev/null > /dev/null 2>&1 &")).waitForFinish();
+    }
+
+    private static int getPort(Context context) {
+        return PreferenceHelper.getDnsmasqPort(context, PORT);
+    }
+
+    /**
+     * Counts restarts of dnsmasq that was not stopped by AdAway
+     *
+     * @return false if dnsmasq died too often in the last RESTART_WINDOW
+     */
+    private static synchronized boolean allowRestart() {
+        long now = System.currentTimeMillis();
+        if (now - sRestartWindowStart > RESTART_WINDOW) {
+            sRestartWindowStart = now;
+            sRestarts = 0;
+        }
+        return ++sRestarts <= MAX_RESTARTS;
+    }
+
+    /**
+     * Checks if dnsmasq answers on port by querying CHECK_HOSTNAME, which it answers itself
+     */
+    private static boolean isServing(int port) {
+        byte[] query = buildCheckQuery();
+        DatagramSocket socket = null;
+        try {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(CHECK_TIMEOUT);
+            InetAddress localhost = InetAddress.getByName(Constants.LOCALHOST_IPv4);
+
+            byte[] answer = new byte[512];
+            for (int i = 0; i < CHECK_TRIES; i++) {
+                socket.send(new DatagramPacket(query, query.length, localhost, port));
+                try {
+                    DatagramPacket packet = new DatagramPacket(answer, answer.length);
+                    socket.receive(packet);
+
+                    // same id and answer flag
+                    if (packet.getLength() >= 3 && answer[0] == query[0] && answer[1] == query[1]
+                            && (answer[2] & 0x80) != 0) {
+                        return true;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // dnsmasq is still starting
+                }
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Problem while checking dnsmasq on port " + port, e);
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+
+        Log.e(Constants.TAG, "dnsmasq does not answer on port " + port);
+        return false;
+    }
+
+    private static byte[] buildCheckQuery() {
+        ByteArrayOutputStream query = new ByteArrayOutputStream();
+
+        // id, flags with recursion desired, one question
+        byte[] header = { 'A', 'A', 0x01, 0, 0, 1, 0, 0, 0, 0, 0, 0 };
+        query.write(header, 0, header.length);
+        for (String label : CHECK_HOSTNAME.split("\\.")) {
+            byte[] bytes = label.getBytes();
+            query.write(bytes.length);
+            query.write(bytes, 0, bytes.length);
+        }
+        // end of name, type A, class IN
+        byte[] question = { 0, 0, 1, 0, 1 };
+        query.write(question, 0, question.length);
+
+        return query.toByteArray();
+    }
+
+    /**
+     * Redirect DNS queries of all users except dnsmasq to the instance on port and reject DNS
+     * over IPv6. The chain of the instance is complete before the jump to it is inserted, the
+     * chain of the other port is removed afterwards, so queries are never sent to a closed port.
+     */
+    private static void addRedirect(Shell shell, int port) throws Exception {
+        String chain = IPTABLES_CHAIN + port;
+        SimpleCommand udpCommand = new SimpleCommand(IPTABLES_NAT + "-A " + chain
+                + " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + port);
+        SimpleCommand tcpCommand = new SimpleCommand(IPTABLES_NAT + "-A " + chain
+                + " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + port);
+        SimpleCommand jumpCommand = new SimpleCommand(IPTABLES_NAT + "-I OUTPUT -j " + chain);
+
+        // -N fails if the chain exists and -D if there is no jump yet, both is fine
+        shell.addBatch(new SimpleCommand(IPTABLES_NAT + "-N " + chain),
+                new SimpleCommand(IPTABLES_NAT + "-F " + chain),
+                new SimpleCommand(IPTABLES_NAT + "-A " + chain + " -m owner --uid-owner " + USER
+                        + " -j RETURN"),
+                udpCommand, tcpCommand,
+                new SimpleCommand(IPTABLES_NAT + "-D OUTPUT -j " + chain),
+                jumpCommand).waitForFinish();
+
+        if (udpCommand.getExitCode() != 0 || jumpCommand.getExitCode() != 0) {
+            throw new CommandException("Problem while redirecting DNS to dnsmasq!");
+        }
+
+        removeChain(shell, IPTABLES_NAT, IPTABLES_CHAIN + (port == PORT ? SECOND_PORT : PORT));
+        rejectIpv6(shell);
+    }
+
+    /**
+     * dnsmasq does not listen on IPv6, reject DNS over IPv6 so that resolvers use IPv4 instead
+     * of bypassing dnsmasq. Kernels without ip6tables only log a warning.
+     */
+    private static void rejectIpv6(Shell shell) throws Exception {
+        SimpleCommand jumpCommand = new SimpleCommand(IP6TABLES + "-I OUTPUT -j "
+                + IP6TABLES_CHAIN);
+
+        shell.addBatch(new SimpleCommand(IP6TABLES + "-N " + IP6TABLES_CHAIN),
+                new SimpleCommand(IP6TABLES + "-F " + IP6TABLES_CHAIN),
+                new SimpleCommand(IP6TABLES + "-A " + IP6TABLES_CHAIN
+                        + " -p udp --dport 53 -j REJECT"),
+                new SimpleCommand(IP6TABLES + "-A " + IP6TABLES_CHAIN
+                        + " -p tcp --dport 53 -j REJECT"),
+                new SimpleCommand(IP6TABLES + "-D OUTPUT -j " + IP6TABLES_CHAIN),
+                jumpCommand).waitForFinish();
+
+        if (jumpCommand.getExitCode() != 0) {
+            Log.w(Constants.TAG, "Could not reject DNS over IPv6, it is not blocked by dnsmasq!");
+        }
+    }
+
+    private static void removeRedirect(Shell shell) throws Exception {
+        removeChain(shell, IPTABLES_NAT, IPTABLES_CHAIN + PORT);
+        removeChain(shell, IPTABLES_NAT, IPTABLES_CHAIN + SECOND_PORT);
+        removeChain(shell, IP6TABLES, IP6TABLES_CHAIN);
+    }
+
+    private static void removeChain(Shell shell, String iptables, String chain) throws Exception {
+        shell.addBatch(new SimpleCommand(iptables + "-D OUTPUT -j " + chain),
+                new SimpleCommand(iptables + "-F " + chain),
+                new SimpleCommand(iptables + "-X " + chain)).waitForFinish();
+    }
+
+    /**
+     * Write DNS servers of the connected networks to the resolv file of dnsmasq. The file is only
+     * written if they changed, because dnsmasq reloads it and clears its cache on every change.
+     * If no servers are found, the old file is kept.
+     */
+    private static void writeResolvFile(Context context, Shell shell) throws Exception {
+        ArrayList<String> servers = getUpstreamServers(context, shell);
+        if (servers.isEmpty()) {
+            Log.d(Constants.TAG, "No upstream DNS servers found, keeping old ones");
+            return;
+        }
+
+        StringBuilder content = new StringBuilder();
+        for (String server : servers) {
+            content.append("nameserver ").append(server).append('\n');
+        }
+
+        File file = new File(context.getFilesDir(), Constants.DNSMASQ_RESOLV_FILENAME);
+        if (content.toString().equals(readFile(file))) {
+            return;
+        }
+
+        Log.d(Constants.TAG, "Upstream DNS servers of dnsmasq: " + servers);
+        FileOutputStream fos = context.openFileOutput(Constants.DNSMASQ_RESOLV_FILENAME,
+                Context.MODE_PRIVATE);
+        try {
+            fos.write(content.toString().getBytes());
+        } finally {
+            fos.close();
+        }
+
+        // read by dnsmasq after dropping root
+        shell.add(new SimpleCommand(Constants.COMMAND_CHMOD_644 + " " + file)).waitForFinish();
+    }
+
+    private static ArrayList<String> getUpstreamServers(Context context, Shell shell)
+            throws Exception {
+        ArrayList<String> servers = new ArrayList<String>();
+
+        if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
+            addLinkDnsServers(context, servers);
+        }
+
+        // set for the default network on older versions
+        if (servers.isEmpty()) {
+            SimpleCommand dns1Command = new SimpleCommand("getprop net.dns1");
+            SimpleCommand dns2Command = new SimpleCommand("getprop net.dns2");
+            shell.addBatch(dns1Command, dns2Command).waitForFinish();
+
+            addServer(servers, dns1Command.getOutput().trim());
+            addServer(servers, dns2Command.getOutput().trim());
+        }
+
+        return servers;
+    }
+
+    @TargetApi(VERSION_CODES.LOLLIPOP)
+    private static void addLinkDnsServers(Context context, ArrayList<String> servers) {
+        ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        for (Network network : cm.getAllNetworks()) {
+            NetworkInfo info = cm.getNetworkInfo(network);
+            LinkProperties properties = cm.getLinkProperties(network);
+            if (info == null || !info.isConnected() || properties == null) {
+                continue;
+            }
+
+            for (InetAddress address : properties.getDnsServers()) {
+                if (address instanceof Inet4Address) {
+                    addServer(servers, address.getHostAddress());
+                }
+            }
+        }
+    }
+
+    /**
+     * dnsmasq is built without IPv6 and must never forward to itself
+     */
+    private static void addServer(ArrayList<String> servers, String server) {
+        if (server.length() == 0 || server.indexOf(':') != -1 || server.startsWith("127.")
+                || servers.contains(server)) {
+            return;
+        }
+        servers.add(server);
+    }
+
+    /**
+     * @return content of small text file or null if it does not exist
+     */
+    private static String readFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+            StringBuilder content = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                content.append(line).append('\n');
+            }
+            return content.toString();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Problem while reading " + file, e);
+            return null;
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Exception on close of " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of hostnames stored as a trie of reversed labels, ads.example.com is stored as com ->
+ * example -> ads. Every label is interned once as bytes in a HostnameSet and every node only
+ * consists of a few ints, so common parent domains are shared between all their subdomains.
+ * Hostnames can be added directly from the bytes of a hosts file, Strings are only created when
+ * iterating.
+ * <p/>
+ * Besides the usual Set operations it can answer if a parent domain of a hostname is contained and
+ * iterates in sorted order of the reversed labels, subdomains directly follow their parent domain.
+ * <p/>
+ * Only ASCII hostnames are supported. Removed hostnames keep their nodes until clear() is called.
+ * Not thread-safe.
+ */
+public class DomainTrie extends AbstractSet<String> {
+    private static final int ROOT = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    // interned labels, label ids are the ids of this set
+    private HostnameSet mLabels = new HostnameSet();
+
+    // nodes, 0 is the root, a node is identified by its parent and label
+    private int[] mParent = new int[INITIAL_CAPACITY];
+    private int[] mLabel = new int[INITIAL_CAPACITY];
+    private boolean[] mTerminal = new boolean[INITIAL_CAPACITY];
+    private int mNodeCount = 1;
+
+    // open addressing table of all nodes except the root, hashed by parent and label, 0 is empty
+    private int[] mNodeTable = new int[INITIAL_CAPACITY * 2];
+
+    // sibling lists in label order, only built for iteration, 0 means none
+    private int[] mFirstChild;
+    private int[] mNextSibling;
+
+    private int mSize;
+    private int mModCount;
+
+    public DomainTrie() {
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @throws IllegalArgumentException if hostname is not ASCII
+     */
+    @Override
+    public boolean add(String hostname) {
+        int node = ROOT;
+        int end = hostname.length();
+        while (end >= 0) {
+            int dot = hostname.lastIndexOf('.', end - 1);
+            node = getOrAddChild(node, mLabels.intern(hostname, dot + 1, end));
+            end = dot;
+        }
+        return setTerminal(node);
+    }
+
+    /**
+     * Add hostname from the ASCII bytes of buffer without creating a String
+     *
+     * @param buffer
+     * @param start  offset of first byte of hostname
+     * @param end    offset after last byte of hostname
+     * @return true if hostname was not contained before
+     */
+    public boolean add(byte[] buffer, int start, int end) {
+        int node = ROOT;
+        int labelEnd = end;
+        while (labelEnd >= start) {
+            int dot = labelEnd - 1;
+            while (dot >= start && buffer[dot] != '.') {
+                dot--;
+            }
+            node = getOrAddChild(node, mLabels.intern(buffer, dot + 1, labelEnd - dot - 1));
+            labelEnd = dot;
+        }
+        return setTerminal(node);
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        if (!(object instanceof String)) {
+            return false;
+        }
+        int node = findNode((String) object);
+        return node != ROOT && mTerminal[node];
+    }
+
+    @Override
+    public boolean remove(Object object) {
+        if (!(object instanceof String)) {
+            return false;
+        }
+        int node = findNode((String) object);
+        if (node == ROOT || !mTerminal[node]) {
+            return false;
+        }
+        removeNode(node);
+        return true;
+    }
+
+    /**
+     * Check if a parent domain of hostname is contained, e.g. example.com for ads.example.com. The
+     * hostname itself is not checked.
+     */
+    public boolean containsParentOf(String hostname) {
+        int node = ROOT;
+        int end = hostname.length();
+        while (end >= 0) {
+            int dot = hostname.lastIndexOf('.', end - 1);
+            if (dot < 0) {
+                // reached the hostname itself
+                return false;
+            }
+            int label = mLabels.indexOf(hostname, dot + 1, end);
+            node = label < 0 ? -1 : findChild(node, label);
+            if (node < 0) {
+                return false;
+            }
+            if (mTerminal[node]) {
+                return true;
+            }
+            end = dot;
+        }
+        return false;
+    }
+
+    /**
+     * Merge all hostnames of other trie into this trie without splitting them again
+     */
+    public void addAll(DomainTrie other) {
+        int[] labelMap = new int[other.mLabels.size()];
+        for (int otherLabel = 0; otherLabel < labelMap.length; otherLabel++) {
+            labelMap[otherLabel] = mLabels.intern(other.mLabels, otherLabel);
+        }
+        int[] nodeMap = new int[other.mNodeCount];
+
+        // parents are always created before their children
+        for (int otherNode = 1; otherNode < other.mNodeCount; otherNode++) {
+            int node = getOrAddChild(nodeMap[other.mParent[otherNode]],
+                    labelMap[other.mLabel[otherNode]]);
+            nodeMap[otherNode] = node;
+
+            if (other.mTerminal[otherNode]) {
+                setTerminal(node);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLabels = new HostnameSet();
+        mParent = new int[INITIAL_CAPACITY];
+        mLabel = new int[INITIAL_CAPACITY];
+        mTerminal = new boolean[INITIAL_CAPACITY];
+        mNodeCount = 1;
+        mNodeTable = new int[INITIAL_CAPACITY * 2];
+        mFirstChild = null;
+        mNextSibling = null;
+        mSize = 0;
+        mModCount++;
+    }
+
+    /**
+     * Write labels and nodes of this trie, read them back with readFrom()
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        int labelCount = mLabels.size();
+        out.writeInt(labelCount);
+        byte[] label = new byte[64];
+        for (int id = 0; id < labelCount; id++) {
+            int length = mLabels.getLength(id);
+            if (label.length < length) {
+                label = new byte[length];
+            }
+            mLabels.getBytes(id, label, 0);
+            out.writeShort(length);
+            out.write(label, 0, length);
+        }
+
+        out.writeInt(mNodeCount);
+        ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        for (int node = 1; node < mNodeCount; node++) {
+            if (buffer.remaining() < 9) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putInt(mParent[node]);
+            buffer.putInt(mLabel[node]);
+            buffer.put((byte) (mTerminal[node] ? 1 : 0));
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Replace content of this trie with a trie written by writeTo(). Labels and nodes are read in
+     * bulk, no hostname has to be split again.
+     *
+     * @throws IOException if data is incomplete or corrupt
+     */
+    public void readFrom(DataInputStream in) throws IOException {
+        clear();
+
+        int labelCount = in.readInt();
+        byte[] label = new byte[64];
+        for (int id = 0; id < labelCount; id++) {
+            int length = in.readUnsignedShort();
+            if (label.length < length) {
+                label = new byte[length];
+            }
+            in.readFully(label, 0, length);
+            if (mLabels.intern(label, 0, length) != id) {
+                throw new IOException("Duplicate label in trie data");
+            }
+        }
+
+        int nodeCount = in.readInt();
+        if (nodeCount < 1) {
+            throw new IOException("Invalid node count in trie data");
+        }
+        mParent = new int[nodeCount];
+        mLabel = new int[nodeCount];
+        mTerminal = new boolean[nodeCount];
+
+        byte[] chunk = new byte[IO_BUFFER_SIZE - IO_BUFFER_SIZE % 9];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        int node = 1;
+        while (node < nodeCount) {
+            int count = Math.min(nodeCount - node, chunk.length / 9);
+            in.readFully(chunk, 0, count * 9);
+            buffer.clear();
+            for (int end = node + count; node < end; node++) {
+                int parent = buffer.getInt();
+                int labelId = buffer.getInt();
+                // parents are always created before their children
+                if (parent < 0 || parent >= node || labelId < 0 || labelId >= labelCount) {
+                    throw new IOException("Invalid node in trie data");
+                }
+                mParent[node] = parent;
+                mLabel[node] = labelId;
+                if (buffer.get() != 0) {
+                    mTerminal[node] = true;
+                    mSize++;
+                }
+            }
+        }
+        mNodeCount = nodeCount;
+        rehash(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(nodeCount) * 4));
+        mModCount++;
+    }
+
+    /**
+     * Iterates in sorted order of reversed labels. Supports remove().
+     */
+    @Override
+    public Iterator<String> iterator() {
+        sortSiblings();
+        return new DomainIterator();
+    }
+
+    /**
+     * Builds the hostname of a node by walking up to the root
+     */
+    private String getHostname(int node) {
+        StringBuilder hostname = new StringBuilder(64);
+        mLabels.appendTo(mLabel[node], hostname);
+        node = mParent[node];
+        while (node != ROOT) {
+            hostname.append('.');
+            mLabels.appendTo(mLabel[node], hostname);
+            node = mParent[node];
+        }
+        return hostname.toString();
+    }
+
+    private int findNode(String hostname) {
+        int node = ROOT;
+        int end = hostname.length();
+        while (end >= 0) {
+            int dot = hostname.lastIndexOf('.', end - 1);
+            int label = mLabels.indexOf(hostname, dot + 1, end);
+            if (label < 0) {
+                return ROOT;
+            }
+            node = findChild(node, label);
+            if (node < 0) {
+                return ROOT;
+            }
+            end = dot;
+        }
+        return node;
+    }
+
+    private boolean setTerminal(int node) {
+        if (mTerminal[node]) {
+            return false;
+        }
+        mTerminal[node] = true;
+        mSize++;
+        mModCount++;
+        return true;
+    }
+
+    private void removeNode(int node) {
+        mTerminal[node] = false;
+        mSize--;
+        mModCount++;
+    }
+
+    /**
+     * @return child node, or -(slot + 1) of the free table slot if it does not exist
+     */
+    private int findChild(int parent, int label) {
+        int mask = mNodeTable.length - 1;
+        int slot = hash(parent, label) & mask;
+        int node;
+        while ((node = mNodeTable[slot]) != ROOT) {
+            if (mParent[node] == parent && mLabel[node] == label) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -(slot + 1);
+    }
+
+    private int getOrAddChild(int parent, int label) {
+        int child = findChild(parent, label);
+        if (child >= 0) {
+            return child;
+        }
+        int slot = -child - 1;
+
+        if (mNodeCount == mParent.length) {
+            int capacity = mNodeCount * 2;
+            mParent = Arrays.copyOf(mParent, capacity);
+            mLabel = Arrays.copyOf(mLabel, capacity);
+            mTerminal = Arrays.copyOf(mTerminal, capacity);
+        }
+        child = mNodeCount++;
+        mParent[child] = parent;
+        mLabel[child] = label;
+        mNodeTable[slot] = child;
+        // keep table at most half full
+        if (mNodeCount * 2 > mNodeTable.length) {
+            rehash(mNodeTable.length * 2);
+        }
+
+        mFirstChild = null;
+        mNextSibling = null;
+        mModCount++;
+        return child;
+    }
+
+    private void rehash(int capacity) {
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int node = 1; node < mNodeCount; node++) {
+            int slot = hash(mParent[node], mLabel[node]) & mask;
+            while (table[slot] != ROOT) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = node;
+        }
+        mNodeTable = table;
+    }
+
+    private static int hash(int parent, int label) {
+        int h = parent * 0x9E3779B9 + label;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+
+    /**
+     * Relink all sibling lists in label order. Nodes are sorted once by the rank of their label and
+     * then prepended to their parent in descending order.
+     */
+    private void sortSiblings() {
+        if (mFirstChild != null) {
+            return;
+        }
+
+        Integer[] sortedLabels = new Integer[mLabels.size()];
+        for (int label = 0; label < sortedLabels.length; label++) {
+            sortedLabels[label] = label;
+        }
+        Arrays.sort(sortedLabels, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer label1, Integer label2) {
+                return mLabels.compare(label1, label2);
+            }
+        });
+        int[] rank = new int[sortedLabels.length];
+        for (int i = 0; i < sortedLabels.length; i++) {
+            rank[sortedLabels[i]] = i;
+        }
+
+        long[] nodes = new long[mNodeCount - 1];
+        for (int node = 1; node < mNodeCount; node++) {
+            nodes[node - 1] = ((long) rank[mLabel[node]] << 32) | node;
+        }
+        Arrays.sort(nodes);
+
+        mFirstChild = new int[mNodeCount];
+        mNextSibling = new int[mNodeCount];
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            int node = (int) nodes[i];
+            int parent = mParent[node];
+            mNextSibling[node] = mFirstChild[parent];
+            mFirstChild[parent] = node;
+        }
+    }
+
+    /**
+     * Preorder walk over the sibling lists, only returns terminal nodes
+     */
+    private class DomainIterator implements Iterator<String> {
+        private int mNext;
+        private int mLast = ROOT;
+        private int mExpectedModCount = mModCount;
+
+        DomainIterator() {
+            mNext = advance(ROOT);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != ROOT;
+        }
+
+        @Override
+        public String next() {
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (mNext == ROOT) {
+                throw new NoSuchElementException();
+            }
+            mLast = mNext;
+            mNext = advance(mNext);
+            return getHostname(mLast);
+        }
+
+        @Override
+        public void remove() {
+            if (mLast == ROOT) {
+                throw new IllegalStateException();
+            }
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeNode(mLast);
+            mLast = ROOT;
+            mExpectedModCount = mModCount;
+        }
+
+        private int advance(int node) {
+            do {
+                node = nextInPreorder(node);
+            } while (node != ROOT && !mTerminal[node]);
+            return node;
+        }
+
+        private int nextInPreorder(int node) {
+            if (mFirstChild[node] != ROOT) {
+                return mFirstChild[node];
+            }
+            while (node != ROOT) {
+                if (mNextSibling[node] != ROOT) {
+                    return mNextSibling[node];
+                }
+                node = mParent[node];
+            }
+            return ROOT;
+        }
+    }
+}
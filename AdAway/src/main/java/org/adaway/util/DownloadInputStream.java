@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.adaway.util;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Body of a hosts source download, decompressed while reading. Handles gzip and deflate
+ * Content-Encoding as well as sources that are gzip or zip files themselves, detected by their
+ * magic bytes. Of a zip file the first file in it is read.
+ * <p/>
+ * Counts bytes received from the server and decompressed bytes.
+ */
+public class DownloadInputStream extends FilterInputStream {
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CountingInputStream mReceived;
+    private long mCount;
+
+    private DownloadInputStream(InputStream in, CountingInputStream received) {
+        super(in);
+        mReceived = received;
+    }
+
+    /**
+     * Get body of connected connection
+     *
+     * @param connection connected connection, opened with DownloadUtils.openConnection
+     * @return decompressed body
+     * @throws IOException
+     */
+    public static DownloadInputStream open(URLConnection connection) throws IOException {
+        CountingInputStream received = new CountingInputStream(connection.getInputStream());
+        InputStream in = new BufferedInputStream(received, BUFFER_SIZE);
+
+        String encoding = connection.getContentEncoding();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            in = new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            // deflate should be zlib wrapped, but some servers send raw deflate
+            in = new BufferedInputStream(new InflaterInputStream(in, new Inflater(!isZlib(in)),
+                    BUFFER_SIZE), BUFFER_SIZE);
+        }
+
+        // gzip or zip file as source
+        byte[] magic = peek(in, 4);
+        if (magic.length >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            in = new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+        } else if (magic.length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3
+                && magic[3] == 4) {
+            ZipInputStream zip = new ZipInputStream(in);
+            ZipEntry entry;
+            do {
+                entry = zip.getNextEntry();
+            } while (entry != null && entry.isDirectory());
+            if (entry == null) {
+                throw new IOException("Zip file from " + connection.getURL() + " is empty");
+            }
+            Log.d(Constants.TAG, "Reading " + entry.getName() + " of zip file from "
+                    + connection.getURL());
+            in = new BufferedInputStream(zip, BUFFER_SIZE);
+        }
+
+        return new DownloadInputStream(in, received);
+    }
+
+    /**
+     * @return bytes received from server until now
+     */
+    public long getReceivedCount() {
+        return mReceived.getCount();
+    }
+
+    /**
+     * @return decompressed bytes read until now
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            mCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = in.read(buffer, offset, count);
+        if (read != -1) {
+            mCount += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = in.skip(count);
+        mCount += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private static boolean isZlib(InputStream in) throws IOException {
+        byte[] header = peek(in, 2);
+        if (header.length < 2) {
+            return false;
+        }
+        int cmf = header[0] & 0xFF;
+        int flg = header[1] & 0xFF;
+        return (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /**
+     * Read first bytes of stream without consuming them, stream has to support mark
+     *
+     * @return up to length bytes, less if stream is shorter
+     */
+    private static byte[] peek(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        in.mark(length);
+        int count = 0;
+        try {
+            while (count < length) {
+                int read = in.read(buffer, count, length - count);
+                if (read == -1) {
+                    break;
+                }
+                count += read;
+            }
+        } finally {
+            in.reset();
+        }
+        if (count < length) {
+            byte[] result = new byte[count];
+            System.arraycopy(buffer, 0, result, 0, count);
+            return result;
+        }
+        return buffer;
+    }
+
+    /**
+     * Counts bytes read from the underlying stream
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read != -1) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.adaway.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.adaway.helper.PreferenceHelper;
+
+import android.content.Context;
+
+public class DownloadUtils {
+
+    /**
+     * Opens connection to url with the connect and read timeouts used for hosts sources. A
+     * stalled server thus only fails its own source instead of blocking a download thread.
+     * Compressed responses are accepted, read the body with DownloadInputStream.open().
+     *
+     * @param url
+     * @return connection, not yet connected
+     * @throws IOException
+     */
+    public static URLConnection openConnection(String url) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(Constants.DOWNLOAD_CONNECT_TIMEOUT);
+        connection.setReadTimeout(Constants.DOWNLOAD_READ_TIMEOUT);
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        return connection;
+    }
+
+    /**
+     * Makes request conditional, the server answers with 304 Not Modified instead of the body if
+     * the hosts source did not change since the response these validators are from
+     *
+     * @param connection   connection, not yet connected
+     * @param lastModified Last-Modified of the known copy, 0 if unknown
+     * @param etag         ETag of the known copy, null if unknown
+     */
+    public static void setValidators(URLConnection connection, long lastModified, String etag) {
+        if (lastModified != 0) {
+            connection.setIfModifiedSince(lastModified);
+        }
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+    }
+
+    /**
+     * @param connection connected connection
+     * @return true if server answered 304 Not Modified
+     * @throws IOException
+     */
+    public static boolean isNotModified(URLConnection connection) throws IOException {
+        return connection instanceof HttpURLConnection
+                && ((HttpURLConnection) connection).getResponseCode()
+                == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * @param connection connected connection
+     * @return ETag header or null if not sent
+     */
+    public static String getEtag(URLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag == null || etag.length() == 0) {
+            return null;
+        }
+        return etag;
+    }
+
+    /**
+     * Throws if the server answered with an error, without reading the body
+     *
+     * @param connection connected connection
+     * @throws IOException
+     */
+    public static void checkResponse(URLConnection connection) throws IOException {
+        if (connection instanceof HttpURLConnection) {
+            int responseCode = ((HttpURLConnection) connection).getResponseCode();
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new IOException("Server returned HTTP response code: " + responseCode
+                        + " for URL: " + connection.getURL());
+            }
+        } else {
+            // no response code, check if file is available
+            connection.getInputStream().close();
+        }
+    }
+
+    /**
+     * Closes connection without reading the body
+     */
+    public static void disconnect(URLConnection connection) {
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).disconnect();
+        }
+    }
+
+    /**
+     * Creates thread pool for downloading hosts sources, limited by the number of parallel
+     * downloads in preferences and by the number of sources
+     *
+     * @param context
+     * @param sources number of hosts sources that will be downloaded
+     * @return executor, has to be shut down by the caller
+     */
+    public static ExecutorService newDownloadExecutor(Context context, int sources) {
+        int threads = Math.max(1,
+                Math.min(PreferenceHelper.getParallelDownloads(context), sources));
+        Log.d(Constants.TAG, "Downloading " + sources + " hosts sources with " + threads
+                + " threads");
+        return Executors.newFixedThreadPool(threads);
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Set of ASCII hostnames without one String per entry. All hostnames are stored back-to-back in
+ * one byte buffer, which can be a direct buffer outside of the Java heap. An open addressing table
+ * of entry ids points into the buffer, every entry is one offset and one length.
+ * <p/>
+ * Entries are identified by ids, ids are never reused and increase in insertion order. Iterate
+ * without creating Strings with:
+ * <p/>
+ * <pre>
+ * for (int id = set.first(); id >= 0; id = set.next(id)) {
+ *     int length = set.getBytes(id, buffer, 0);
+ * }
+ * </pre>
+ * <p/>
+ * Removed entries keep their bytes in the buffer. Not thread-safe.
+ */
+public class HostnameSet {
+    private static final int DEFAULT_EXPECTED_SIZE = 256;
+    private static final int AVERAGE_LENGTH = 16;
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private final boolean mDirect;
+
+    private ByteBuffer mArena;
+    private int mArenaSize;
+
+    private int[] mOffsets;
+    private int[] mLengths;
+    private int mIdCount;
+    private int mSize;
+
+    // id + 1 of the entry in every slot, EMPTY or REMOVED
+    private int[] mTable;
+    private int mUsedSlots;
+
+    private byte[] mScratch = new byte[64];
+
+    public HostnameSet() {
+        this(DEFAULT_EXPECTED_SIZE, false);
+    }
+
+    /**
+     * @param expectedSize number of hostnames to allocate space for
+     * @param direct       store the bytes in a direct buffer outside of the Java heap
+     */
+    public HostnameSet(int expectedSize, boolean direct) {
+        mDirect = direct;
+
+        int capacity = Math.max(expectedSize, 16);
+        mArena = allocate(capacity * AVERAGE_LENGTH);
+        mOffsets = new int[capacity];
+        mLengths = new int[capacity];
+        mTable = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+    /**
+     * Check if all characters can be stored, only ASCII is supported
+     */
+    public static boolean isAscii(CharSequence hostname) {
+        for (int i = 0, length = hostname.length(); i < length; i++) {
+            if (hostname.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return true if hostname was not contained before
+     */
+    public boolean add(byte[] bytes, int offset, int length) {
+        int sizeBefore = mSize;
+        intern(bytes, offset, length);
+        return mSize != sizeBefore;
+    }
+
+    /**
+     * @return true if hostname was not contained before
+     * @throws IllegalArgumentException if hostname is not ASCII
+     */
+    public boolean add(CharSequence hostname) {
+        int sizeBefore = mSize;
+        intern(hostname, 0, hostname.length());
+        return mSize != sizeBefore;
+    }
+
+    /**
+     * Add all hostnames of other set
+     */
+    public void addAll(HostnameSet other) {
+        for (int id = other.first(); id >= 0; id = other.next(id)) {
+            intern(other, id);
+        }
+    }
+
+    /**
+     * Returns the id of the hostname, it is added if it is not contained yet
+     */
+    public int intern(byte[] bytes, int offset, int length) {
+        int hash = hash(bytes, offset, length);
+        int slot = findSlot(bytes, offset, length, hash);
+        if (mTable[slot] > EMPTY) {
+            return mTable[slot] - 1;
+        }
+
+        ensureArenaCapacity(length);
+        int arenaOffset = mArenaSize;
+        for (int i = 0; i < length; i++) {
+            mArena.put(arenaOffset + i, bytes[offset + i]);
+        }
+        mArenaSize += length;
+        return insert(slot, arenaOffset, length);
+    }
+
+    /**
+     * Returns the id of the region start to end of s, it is added if it is not contained yet
+     *
+     * @throws IllegalArgumentException if the region is not ASCII
+     */
+    public int intern(CharSequence s, int start, int end) {
+        int hash = hash(s, start, end);
+        if (hash == -1) {
+            throw new IllegalArgumentException("Only ASCII hostnames are supported: " + s);
+        }
+        int length = end - start;
+        int slot = findSlot(s, start, end, hash);
+        if (mTable[slot] > EMPTY) {
+            return mTable[slot] - 1;
+        }
+
+        ensureArenaCapacity(length);
+        int arenaOffset = mArenaSize;
+        for (int i = 0; i < length; i++) {
+            mArena.put(arenaOffset + i, (byte) s.charAt(start + i));
+        }
+        mArenaSize += length;
+        return insert(slot, arenaOffset, length);
+    }
+
+    /**
+     * Returns the id of entry otherId of other set in this set, it is added if it is not contained
+     * yet
+     */
+    public int intern(HostnameSet other, int otherId) {
+        int length = other.mLengths[otherId];
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        other.getBytes(otherId, mScratch, 0);
+        return intern(mScratch, 0, length);
+    }
+
+    /**
+     * @return id of the hostname or -1 if it is not contained
+     */
+    public int indexOf(byte[] bytes, int offset, int length) {
+        int slot = findSlot(bytes, offset, length, hash(bytes, offset, length));
+        return mTable[slot] > EMPTY ? mTable[slot] - 1 : -1;
+    }
+
+    /**
+     * @return id of the region start to end of s or -1 if it is not contained
+     */
+    public int indexOf(CharSequence s, int start, int end) {
+        int hash = hash(s, start, end);
+        if (hash == -1) {
+            return -1;
+        }
+        int slot = findSlot(s, start, end, hash);
+        return mTable[slot] > EMPTY ? mTable[slot] - 1 : -1;
+    }
+
+    public boolean contains(byte[] bytes, int offset, int length) {
+        return indexOf(bytes, offset, length) >= 0;
+    }
+
+    public boolean contains(CharSequence hostname) {
+        return indexOf(hostname, 0, hostname.length()) >= 0;
+    }
+
+    /**
+     * @return true if hostname was contained
+     */
+    public boolean remove(byte[] bytes, int offset, int length) {
+        int slot = findSlot(bytes, offset, length, hash(bytes, offset, length));
+        return removeSlot(slot);
+    }
+
+    /**
+     * @return true if hostname was contained
+     */
+    public boolean remove(CharSequence hostname) {
+        int hash = hash(hostname, 0, hostname.length());
+        if (hash == -1) {
+            return false;
+        }
+        return removeSlot(findSlot(hostname, 0, hostname.length(), hash));
+    }
+
+    /**
+     * @return first id or -1 if set is empty
+     */
+    public int first() {
+        return next(-1);
+    }
+
+    /**
+     * @return id following id or -1 if there is none
+     */
+    public int next(int id) {
+        for (id++; id < mIdCount; id++) {
+            if (mLengths[id] != REMOVED) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    public int getLength(int id) {
+        return mLengths[id];
+    }
+
+    /**
+     * Copy the bytes of an entry into dst
+     *
+     * @return length of the entry
+     */
+    public int getBytes(int id, byte[] dst, int dstOffset) {
+        int offset = mOffsets[id];
+        int length = mLengths[id];
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = mArena.get(offset + i);
+        }
+        return length;
+    }
+
+    public void appendTo(int id, StringBuilder builder) {
+        int offset = mOffsets[id];
+        int length = mLengths[id];
+        for (int i = 0; i < length; i++) {
+            builder.append((char) mArena.get(offset + i));
+        }
+    }
+
+    public String getString(int id) {
+        StringBuilder builder = new StringBuilder(mLengths[id]);
+        appendTo(id, builder);
+        return builder.toString();
+    }
+
+    /**
+     * Compares two entries byte by byte, ordered like the corresponding Strings
+     */
+    public int compare(int id1, int id2) {
+        int offset1 = mOffsets[id1];
+        int offset2 = mOffsets[id2];
+        int length1 = mLengths[id1];
+        int length2 = mLengths[id2];
+        for (int i = 0, length = Math.min(length1, length2); i < length; i++) {
+            int difference = mArena.get(offset1 + i) - mArena.get(offset2 + i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length1 - length2;
+    }
+
+    private int insert(int slot, int arenaOffset, int length) {
+        if (mIdCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mIdCount * 2);
+            mLengths = Arrays.copyOf(mLengths, mIdCount * 2);
+        }
+        int id = mIdCount++;
+        mOffsets[id] = arenaOffset;
+        mLengths[id] = length;
+
+        if (mTable[slot] == EMPTY) {
+            mUsedSlots++;
+        }
+        mTable[slot] = id + 1;
+        mSize++;
+
+        // keep table at most half full, removed slots count as used
+        if (mUsedSlots * 2 > mTable.length) {
+            rehash(mSize * 2 > mTable.length / 2 ? mTable.length * 2 : mTable.length);
+        }
+        return id;
+    }
+
+    private boolean removeSlot(int slot) {
+        if (mTable[slot] <= EMPTY) {
+            return false;
+        }
+        mLengths[mTable[slot] - 1] = REMOVED;
+        mTable[slot] = REMOVED;
+        mSize--;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = first(); id >= 0; id = next(id)) {
+            int slot = hash(id) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+        mTable = table;
+        mUsedSlots = mSize;
+    }
+
+    /**
+     * Slot of the entry, or the first free slot where it can be inserted
+     */
+    private int findSlot(byte[] bytes, int offset, int length, int hash) {
+        int mask = mTable.length - 1;
+        int slot = hash & mask;
+        int freeSlot = -1;
+        int entry;
+        while ((entry = mTable[slot]) != EMPTY) {
+            if (entry == REMOVED) {
+                if (freeSlot == -1) {
+                    freeSlot = slot;
+                }
+            } else if (equals(entry - 1, bytes, offset, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return freeSlot == -1 ? slot : freeSlot;
+    }
+
+    private int findSlot(CharSequence s, int start, int end, int hash) {
+        int mask = mTable.length - 1;
+        int slot = hash & mask;
+        int freeSlot = -1;
+        int entry;
+        while ((entry = mTable[slot]) != EMPTY) {
+            if (entry == REMOVED) {
+                if (freeSlot == -1) {
+                    freeSlot = slot;
+                }
+            } else if (equals(entry - 1, s, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return freeSlot == -1 ? slot : freeSlot;
+    }
+
+    private boolean equals(int id, byte[] bytes, int offset, int length) {
+        if (mLengths[id] != length) {
+            return false;
+        }
+        int arenaOffset = mOffsets[id];
+        for (int i = 0; i < length; i++) {
+            if (mArena.get(arenaOffset + i) != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equals(int id, CharSequence s, int start, int end) {
+        int length = end - start;
+        if (mLengths[id] != length) {
+            return false;
+        }
+        int arenaOffset = mOffsets[id];
+        for (int i = 0; i < length; i++) {
+            if (mArena.get(arenaOffset + i) != s.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(int id) {
+        int offset = mOffsets[id];
+        int h = 0;
+        for (int i = 0, length = mLengths[id]; i < length; i++) {
+            h = 31 * h + mArena.get(offset + i);
+        }
+        return mix(h);
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + bytes[offset + i];
+        }
+        return mix(h);
+    }
+
+    /**
+     * Same hash as for the ASCII bytes, -1 if s contains other characters
+     */
+    private static int hash(CharSequence s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c > 0x7F) {
+                return -1;
+            }
+            h = 31 * h + c;
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        // never -1, that is used for non ASCII input
+        return (h ^ (h >>> 13)) & 0x7FFFFFFF;
+    }
+
+    private void ensureArenaCapacity(int length) {
+        if (mArenaSize + length <= mArena.capacity()) {
+            return;
+        }
+        ByteBuffer arena = allocate(Math.max(mArena.capacity() * 2, mArenaSize + length));
+        mArena.position(0);
+        mArena.limit(mArenaSize);
+        arena.put(mArena);
+        mArena = arena;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
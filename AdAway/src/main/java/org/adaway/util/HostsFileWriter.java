@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes entries of a hosts file into a large buffer that is flushed to the underlying stream in
+ * big blocks. The line separator and redirection ip in front of every blacklisted hostname are
+ * encoded once, hostnames are copied char by char without creating Strings, only hostnames with
+ * non-ASCII chars are encoded with the platform charset.
+ * <p/>
+ * In compact mode consecutive blacklist entries share one line after the redirection ip, up to
+ * MAX_HOSTS_PER_LINE hostnames and MAX_LINE_LENGTH chars per line. Resolvers compare every name
+ * of a line, but some limit the number of aliases and the length of lines they read.
+ * <p/>
+ * Every line starts with a line separator, like the hosts files written by AdAway before, so the
+ * file has to be ended with newLine().
+ */
+public class HostsFileWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static final int MAX_HOSTS_PER_LINE = 9;
+    public static final int MAX_LINE_LENGTH = 1024;
+
+    private static final byte[] LINE_SEPERATOR = Constants.LINE_SEPERATOR.getBytes();
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mCount = 0;
+
+    // line separator, redirection ip and space
+    private final byte[] mBlacklistPrefix;
+    private final boolean mCompact;
+
+    // blacklisted hostnames and length of current line in compact mode
+    private int mHostsOnLine = 0;
+    private int mLineLength = 0;
+
+    /**
+     * @param out           stream to write to, it is closed by close()
+     * @param redirectionIP ip blacklisted hostnames are redirected to
+     */
+    public HostsFileWriter(OutputStream out, String redirectionIP) {
+        this(out, redirectionIP, false);
+    }
+
+    /**
+     * @param out           stream to write to, it is closed by close()
+     * @param redirectionIP ip blacklisted hostnames are redirected to
+     * @param compact       write several blacklisted hostnames per line
+     */
+    public HostsFileWriter(OutputStream out, String redirectionIP, boolean compact) {
+        mOut = out;
+        mBlacklistPrefix = (Constants.LINE_SEPERATOR + redirectionIP + " ").getBytes();
+        mCompact = compact;
+    }
+
+    /**
+     * Write blacklist entry with the redirection ip on a new line, in compact mode it is appended
+     * to the current line if there is room
+     */
+    public void writeBlacklistEntry(String hostname) throws IOException {
+        if (mCompact && mHostsOnLine > 0 && mHostsOnLine < MAX_HOSTS_PER_LINE
+                && mLineLength + 1 + hostname.length() <= MAX_LINE_LENGTH) {
+            writeByte(' ');
+            mLineLength += 1 + writeAscii(hostname);
+            mHostsOnLine++;
+            return;
+        }
+
+        write(mBlacklistPrefix);
+        mLineLength = mBlacklistPrefix.length - LINE_SEPERATOR.length + writeAscii(hostname);
+        mHostsOnLine = 1;
+    }
+
+    /**
+     * Write entry with its own ip on a new line, e.g. of the redirection list
+     */
+    public void writeEntry(String ip, String hostname) throws IOException {
+        mHostsOnLine = 0;
+        write(LINE_SEPERATOR);
+        writeAscii(ip);
+        writeByte(' ');
+        writeAscii(hostname);
+    }
+
+    /**
+     * Write text as it is, e.g. comments of the header
+     */
+    public void write(String text) throws IOException {
+        mHostsOnLine = 0;
+        write(text.getBytes());
+    }
+
+    public void newLine() throws IOException {
+        mHostsOnLine = 0;
+        write(LINE_SEPERATOR);
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        int length = bytes.length;
+        if (length > BUFFER_SIZE - mCount) {
+            flushBuffer();
+            if (length > BUFFER_SIZE) {
+                mOut.write(bytes, 0, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, mBuffer, mCount, length);
+        mCount += length;
+    }
+
+    private void writeByte(char c) throws IOException {
+        if (mCount == BUFFER_SIZE) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = (byte) c;
+    }
+
+    /**
+     * Copy chars of string as bytes, falls back to encoding the whole string if it contains
+     * non-ASCII chars
+     *
+     * @return number of bytes written
+     */
+    private int writeAscii(String text) throws IOException {
+        int length = text.length();
+        if (length > BUFFER_SIZE - mCount) {
+            flushBuffer();
+            if (length > BUFFER_SIZE) {
+                return writeEncoded(text);
+            }
+        }
+
+        int start = mCount;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                mCount = start;
+                return writeEncoded(text);
+            }
+            mBuffer[mCount++] = (byte) c;
+        }
+        return length;
+    }
+
+    private int writeEncoded(String text) throws IOException {
+        byte[] bytes = text.getBytes();
+        write(bytes);
+        return bytes.length;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+}
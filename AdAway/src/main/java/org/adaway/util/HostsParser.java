@@ -20,11 +20,20 @@
 
 package org.adaway.util;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.adaway.util.Log;
 
@@ -36,24 +45,239 @@ import gnu.trove.map.hash.THashMap;
  * or blacklist items.
  */
 public class HostsParser {
-    private THashSet<String> mBlacklist;
+    /**
+     * Increase when parsing results change, invalidates all source snapshots
+     */
+    public static final int VERSION = 1;
+
+    private DomainTrie mBlacklist;
     private THashSet<String> mWhitelist;
     private THashMap<String, String> mRedirectionList;
 
-    private Matcher mHostsParserMatcher;
-    private Pattern mHostsParserPattern;
+    private HostsTokenizer mTokenizer;
 
     private boolean mParseWhitelist;
     private boolean mParseRedirections;
 
-    public HostsParser(BufferedReader input, boolean parseWhitelist, boolean parseRedirections)
-            throws IOException {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // files smaller than this are not worth splitting into chunks
+    private static final long MIN_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Create empty parser, hosts files are added with parse(InputStream)
+     *
+     * @param parseWhitelist
+     * @param parseRedirections
+     */
+    public HostsParser(boolean parseWhitelist, boolean parseRedirections) {
         mParseWhitelist = parseWhitelist;
         mParseRedirections = parseRedirections;
+
+        mBlacklist = new DomainTrie();
+        mWhitelist = new THashSet<String>();
+        mRedirectionList = new THashMap<String, String>();
+
+        // use whitelist import tokenizer
+        mTokenizer = new HostsTokenizer(mParseWhitelist);
+    }
+
+    public HostsParser(InputStream input, boolean parseWhitelist, boolean parseRedirections)
+            throws IOException {
+        this(parseWhitelist, parseRedirections);
         parse(input);
     }
 
-    public THashSet<String> getBlacklist() {
+    /**
+     * Parse hosts file in parallel. The file is split at line boundaries into one chunk per
+     * available core, every chunk is parsed into its own sets on a thread pool and the partial
+     * results are merged in file order afterwards. The result is the same as parsing the whole file
+     * with one HostsParser.
+     *
+     * @param file
+     * @param parseWhitelist
+     * @param parseRedirections
+     * @return parser containing the merged lists
+     * @throws IOException
+     */
+    public static HostsParser parseFile(final File file, final boolean parseWhitelist,
+                                        final boolean parseRedirections) throws IOException {
+        long length = file.length();
+        int chunks = (int) Math.min(Runtime.getRuntime().availableProcessors(),
+                Math.max(1, length / MIN_CHUNK_SIZE));
+
+        if (chunks <= 1) {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                return new HostsParser(fis, parseWhitelist, parseRedirections);
+            } finally {
+                fis.close();
+            }
+        }
+
+        long[] boundaries = getChunkBoundaries(file, chunks);
+        Log.d(Constants.TAG, "Parsing " + length + " bytes in " + (boundaries.length - 1)
+                + " chunks");
+
+        ExecutorService executor = Executors.newFixedThreadPool(boundaries.length - 1);
+        try {
+            ArrayList<Future<HostsParser>> results = new ArrayList<Future<HostsParser>>();
+            for (int i = 0; i < boundaries.length - 1; i++) {
+                final long chunkStart = boundaries[i];
+                final long chunkLength = boundaries[i + 1] - boundaries[i];
+
+                results.add(executor.submit(new Callable<HostsParser>() {
+                    @Override
+                    public HostsParser call() throws IOException {
+                        InputStream chunk = new ChunkInputStream(file, chunkStart,
+                                chunkLength);
+                        try {
+                            return new HostsParser(chunk, parseWhitelist, parseRedirections);
+                        } finally {
+                            chunk.close();
+                        }
+                    }
+                }));
+            }
+
+            // merge in file order, later redirections replace earlier ones like in parse()
+            HostsParser parser = results.get(0).get();
+            for (int i = 1; i < results.size(); i++) {
+                parser.merge(results.get(i).get());
+            }
+            return parser;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while parsing chunks: " + e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Problem while parsing chunks: " + e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Split file into chunks that start directly after a \n. A \n always ends a line, alone or as
+     * part of \r\n, thus no line is split.
+     *
+     * @return offsets of chunks, first is 0, last is length of file
+     */
+    private static long[] getChunkBoundaries(File file, int chunks) throws IOException {
+        long length = file.length();
+        ArrayList<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] buffer = new byte[4096];
+            for (int i = 1; i < chunks; i++) {
+                long position = Math.max(length * i / chunks,
+                        boundaries.get(boundaries.size() - 1));
+                long boundary = length;
+
+                raf.seek(position);
+                int read;
+                search:
+                while ((read = raf.read(buffer)) != -1) {
+                    for (int j = 0; j < read; j++) {
+                        if (buffer[j] == '\n') {
+                            boundary = position + j + 1;
+                            break search;
+                        }
+                    }
+                    position += read;
+                }
+
+                if (boundary >= length) {
+                    break;
+                }
+                if (boundary > boundaries.get(boundaries.size() - 1)) {
+                    boundaries.add(boundary);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        boundaries.add(length);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Reads only the given range of a file
+     */
+    private static class ChunkInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        ChunkInputStream(File file, long start, long length) throws IOException {
+            super(openAt(file, start));
+            mRemaining = length;
+        }
+
+        /**
+         * Open file and skip to start, the stream is closed if skipping fails
+         */
+        private static InputStream openAt(File file, long start) throws IOException {
+            FileInputStream stream = new FileInputStream(file);
+            try {
+                long skipped = 0;
+                while (skipped < start) {
+                    long count = stream.skip(start - skipped);
+                    if (count <= 0) {
+                        throw new IOException("Could not skip to chunk at " + start);
+                    }
+                    skipped += count;
+                }
+                return stream;
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read != -1) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Merge lists of a parser that parsed content following the content of this parser, later
+     * redirections replace earlier ones
+     */
+    public void merge(HostsParser other) {
+        mBlacklist.addAll(other.mBlacklist);
+        mWhitelist.addAll(other.mWhitelist);
+        mRedirectionList.putAll(other.mRedirectionList);
+    }
+
+    public DomainTrie getBlacklist() {
         return mBlacklist;
     }
 
@@ -66,62 +290,122 @@ public class HostsParser {
     }
 
     /**
-     * Parse hosts file from BufferedReader
+     * Parse hosts file from InputStream until its end. Lines are split on raw bytes the same way
+     * BufferedReader.readLine() does it and tokenized by HostsTokenizer.
+     * <p/>
+     * This can be called multiple times, for example directly on the stream of every hosts source
+     * while it is downloaded. Lists of all calls are accumulated like they were parsed from one
+     * concatenated file. Not thread-safe.
      *
-     * @param reader
+     * @param input
      * @throws IOException
      */
-    private void parse(BufferedReader reader) throws IOException {
-        String nextLine;
-        String currentIp;
-        String currentHostname;
-        mBlacklist = new THashSet<String>();
-        mWhitelist = new THashSet<String>();
-        mRedirectionList = new THashMap<String, String>();
+    public void parse(InputStream input) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        // bytes in buffer, first byte of current line
+        int count = 0;
+        int lineStart = 0;
+        // on \r\n skip the \n, it could be the first byte of the next read
+        boolean skipLineFeed = false;
+        int read;
+        while ((read = input.read(buffer, count, buffer.length - count)) != -1) {
+            int i = count;
+            count += read;
 
-        // use whitelist import pattern
-        if (mParseWhitelist) {
-            mHostsParserPattern = RegexUtils.hostsParserWhitelistImportPattern;
-        } else {
-            mHostsParserPattern = RegexUtils.hostsParserPattern;
-        }
-        while ((nextLine = reader.readLine()) != null) {
-            mHostsParserMatcher = mHostsParserPattern.matcher(nextLine);
-
-            if (mHostsParserMatcher.matches()) {
-                // for (int i = 0; i <= mHostsParserMatcher.groupCount(); i++) {
-                // Log.d(Constants.TAG, "group (" + i + "): " + mHostsParserMatcher.group(i));
-                // }
-
-                currentIp = mHostsParserMatcher.group(1);
-                currentHostname = mHostsParserMatcher.group(2);
-
-                // check if ip is 127.0.0.1 or 0.0.0.0
-                if (currentIp.equals(Constants.LOCALHOST_IPv4)
-                        || currentIp.equals(Constants.BOGUS_IPv4)) {
-                    mBlacklist.add(currentHostname);
-                } else if (currentIp.equals(Constants.WHITELIST_ENTRY)) {
-                    mWhitelist.add(currentHostname);
-                } else if (mParseRedirections) {
-                    mRedirectionList.put(currentHostname, currentIp);
+            if (skipLineFeed && i < count) {
+                if (buffer[i] == '\n') {
+                    i++;
+                    lineStart = i;
+                }
+                skipLineFeed = false;
+            }
+
+            for (; i < count; i++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    parseLine(buffer, lineStart, i);
+
+                    if (b == '\r') {
+                        if (i + 1 < count) {
+                            if (buffer[i + 1] == '\n') {
+                                i++;
+                            }
+                        } else {
+                            skipLineFeed = true;
+                        }
+                    }
+                    lineStart = i + 1;
                 }
+            }
+
+            // move incomplete line to the beginning, grow buffer for very long lines
+            if (lineStart == 0 && count == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
             } else {
-                Log.d(Constants.TAG, "Does not match: " + nextLine);
+                System.arraycopy(buffer, lineStart, buffer, 0, count - lineStart);
+                count -= lineStart;
+                lineStart = 0;
             }
         }
 
+        // last line without line terminator
+        if (count > lineStart) {
+            parseLine(buffer, lineStart, count);
+        }
+
         // strip localhost entry from blacklist and redirection list
         mBlacklist.remove(Constants.LOCALHOST_HOSTNAME);
         mRedirectionList.remove(Constants.LOCALHOST_HOSTNAME);
     }
 
+    /**
+     * Parse one line, blacklist entries are added from the buffer, strings are only created for
+     * whitelist and redirection entries
+     */
+    private void parseLine(byte[] buffer, int start, int end) {
+        if (!mTokenizer.tokenize(buffer, start, end)) {
+            if (Constants.DEBUG) {
+                Log.d(Constants.TAG, "Does not match: " + new String(buffer, start, end - start));
+            }
+            return;
+        }
+
+        int ipStart = mTokenizer.getIpStart();
+        int ipEnd = mTokenizer.getIpEnd();
+        int hostnameStart = mTokenizer.getHostnameStart();
+        int hostnameEnd = mTokenizer.getHostnameEnd();
+
+        // check if ip is 127.0.0.1 or 0.0.0.0
+        if (HostsTokenizer.regionEquals(buffer, ipStart, ipEnd, Constants.LOCALHOST_IPv4)
+                || HostsTokenizer.regionEquals(buffer, ipStart, ipEnd, Constants.BOGUS_IPv4)) {
+            mBlacklist.add(buffer, hostnameStart, hostnameEnd);
+        } else if (HostsTokenizer.regionEquals(buffer, ipStart, ipEnd,
+                Constants.WHITELIST_ENTRY)) {
+            mWhitelist.add(new String(buffer, hostnameStart, hostnameEnd - hostnameStart, ASCII));
+        } else if (mParseRedirections) {
+            mRedirectionList.put(
+                    new String(buffer, hostnameStart, hostnameEnd - hostnameStart, ASCII),
+                    new String(buffer, ipStart, ipEnd - ipStart, ASCII));
+        }
+    }
+
     /**
      * Add blacklist to this hosts file
      *
      * @param blacklist
      */
-    public void addBlacklist(THashSet<String> blacklist) {
-        mBlacklist.addAll(blacklist);
+    public void addBlacklist(HostnameSet blacklist) {
+        byte[] hostname = new byte[64];
+        for (int id = blacklist.first(); id >= 0; id = blacklist.next(id)) {
+            int length = blacklist.getLength(id);
+            if (hostname.length < length) {
+                hostname = new byte[length];
+            }
+            blacklist.getBytes(id, hostname, 0);
+            mBlacklist.add(hostname, 0, length);
+        }
     }
 
     /**
@@ -149,49 +433,27 @@ public class HostsParser {
      * Remove whitelist entries from blacklist with regex,
      */
     public void compileList() {
-        Log.d(Constants.TAG, "Compiling all whitelist regex");
-
-        // remove whitelist items from blacklist using regex
-        THashSet<Pattern> whitelistPattern = new THashSet<Pattern>();
-        String regexItem;
-        for (String item : mWhitelist) {
-            // convert example*.* to regex: ^example.*\\..*$
-            regexItem = RegexUtils.wildcardToRegex(item);
-            whitelistPattern.add(Pattern.compile(regexItem));
-        }
+        Log.d(Constants.TAG, "Compiling whitelist");
 
-        if(whitelistPattern.size()>0) {
-            Log.d(Constants.TAG, "Starting whitelist regex");
-            Matcher whitelistMatcher;
-            String blacklistHostname;
+        // remove whitelist items from blacklist, all wildcards are tested at once
+        WhitelistMatcher whitelistMatcher = new WhitelistMatcher(mWhitelist);
+
+        if (!whitelistMatcher.isEmpty()) {
+            Log.d(Constants.TAG, "Starting whitelist matching");
             // go through all blacklist hostnames from host sources
             for (Iterator<String> iterator = mBlacklist.iterator(); iterator.hasNext(); ) {
-                blacklistHostname = iterator.next();
-
-                // use all whitelist patterns on this hostname
-                for (Pattern pattern : whitelistPattern) {
-                    whitelistMatcher = pattern.matcher(blacklistHostname);
-
-                    try {
-                        if (whitelistMatcher.find()) {
-                            // remove item, because regex fits
-                            iterator.remove();
-                            break;
-                        }
-                    } catch (Exception e) {
-                        // workaround for some devices that throws jni exceptions: dont use
-                        // whitelist
-                        Log.e(Constants.TAG, "Error in whitelist regex processing", e);
-                    }
+                if (whitelistMatcher.matches(iterator.next())) {
+                    iterator.remove();
                 }
             }
-            Log.d(Constants.TAG, "Ending whitelist regex");
+            Log.d(Constants.TAG, "Ending whitelist matching");
         } else {
-            Log.d(Constants.TAG, "Skipping whitelist regex");
+            Log.d(Constants.TAG, "Skipping whitelist matching");
         }
 
         // remove hostnames that are in redirection list
-        THashSet<String> redirectionRemove = new THashSet<String>(mRedirectionList.keySet());
-        mBlacklist.removeAll(redirectionRemove);
+        for (String redirectionHostname : mRedirectionList.keySet()) {
+            mBlacklist.remove(redirectionHostname);
+        }
     }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.util;
+
+/**
+ * Tokenizes single lines of hosts files on raw bytes in one pass. It accepts and rejects exactly
+ * the same lines as RegexUtils.hostsParserPattern (or hostsParserWhitelistImportPattern if
+ * constructed for whitelist import), but does not allocate anything. After a line has been
+ * accepted the ip and hostname can be read as offsets into the tokenized buffer.
+ * <p/>
+ * A line is expected without line terminator, like returned by BufferedReader.readLine().
+ */
+public class HostsTokenizer {
+    private static final int HOSTNAME_MAX_LENGTH = 63;
+
+    private static final byte[] WHITELIST_ENTRY = Constants.WHITELIST_ENTRY.getBytes();
+
+    private final boolean mWhitelistImport;
+
+    private int mIpStart;
+    private int mIpEnd;
+    private int mHostnameStart;
+    private int mHostnameEnd;
+
+    /**
+     * @param whitelistImport also accept "white" as ip and * and ? in hostnames
+     */
+    public HostsTokenizer(boolean whitelistImport) {
+        mWhitelistImport = whitelistImport;
+    }
+
+    public int getIpStart() {
+        return mIpStart;
+    }
+
+    public int getIpEnd() {
+        return mIpEnd;
+    }
+
+    public int getHostnameStart() {
+        return mHostnameStart;
+    }
+
+    public int getHostnameEnd() {
+        return mHostnameEnd;
+    }
+
+    /**
+     * Tokenize one line
+     *
+     * @param line  buffer containing the line
+     * @param start offset of first byte of line
+     * @param end   offset after last byte of line, without line terminator
+     * @return true if line is a valid hosts entry
+     */
+    public boolean tokenize(byte[] line, int start, int end) {
+        int i = start;
+
+        // leading whitespace
+        while (i < end && isWhitespace(line[i])) {
+            i++;
+        }
+
+        // ip, has to be followed by at least one whitespace
+        int ipStart = i;
+        while (i < end && !isWhitespace(line[i])) {
+            i++;
+        }
+        int ipEnd = i;
+        if (ipEnd == ipStart || ipEnd == end || !isIp(line, ipStart, ipEnd)) {
+            return false;
+        }
+
+        while (i < end && isWhitespace(line[i])) {
+            i++;
+        }
+
+        // hostname, has to be followed by whitespace, comment or end of line
+        int hostnameStart = i;
+        while (i < end && isHostnameChar(line[i])) {
+            i++;
+        }
+        int hostnameEnd = i;
+        int hostnameLength = hostnameEnd - hostnameStart;
+        if (hostnameLength == 0 || hostnameLength > HOSTNAME_MAX_LENGTH
+                || !isHostnameBorderChar(line[hostnameStart])
+                || !isHostnameBorderChar(line[hostnameEnd - 1])) {
+            return false;
+        }
+
+        while (i < end && isWhitespace(line[i])) {
+            i++;
+        }
+
+        // optional comment
+        if (i < end) {
+            if (line[i] != '#' || containsUnicodeLineTerminator(line, i + 1, end)) {
+                return false;
+            }
+        }
+
+        mIpStart = ipStart;
+        mIpEnd = ipEnd;
+        mHostnameStart = hostnameStart;
+        mHostnameEnd = hostnameEnd;
+        return true;
+    }
+
+    /**
+     * Compares a region of the buffer with the ASCII bytes of a String
+     */
+    public static boolean regionEquals(byte[] buffer, int start, int end, String ascii) {
+        int length = ascii.length();
+        if (end - start != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[start + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same characters as \s in java.util.regex, without line terminators
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+    }
+
+    private boolean isIp(byte[] line, int start, int end) {
+        boolean simpleIp = true;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (!((b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F')
+                    || b == ':' || b == '.')) {
+                simpleIp = false;
+                break;
+            }
+        }
+        if (simpleIp) {
+            return true;
+        }
+
+        // whitelist entries like "white example.com", matched case insensitive like the regex
+        if (mWhitelistImport && end - start == WHITELIST_ENTRY.length) {
+            for (int i = 0; i < WHITELIST_ENTRY.length; i++) {
+                if ((line[start + i] | 0x20) != WHITELIST_ENTRY[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isHostnameChar(byte b) {
+        return isHostnameBorderChar(b) || b == '-' || b == '_' || b == '.';
+    }
+
+    private boolean isHostnameBorderChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || (mWhitelistImport && (b == '*' || b == '?'));
+    }
+
+    /**
+     * The regex dot in comments does not match U+0085, U+2028 and U+2029, search their UTF-8
+     * encodings
+     */
+    private static boolean containsUnicodeLineTerminator(byte[] line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b == (byte) 0xC2 && i + 1 < end && line[i + 1] == (byte) 0x85) {
+                return true;
+            }
+            if (b == (byte) 0xE2 && i + 2 < end && line[i + 1] == (byte) 0x80
+                    && (line[i + 2] == (byte) 0xA8 || line[i + 2] == (byte) 0xA9)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
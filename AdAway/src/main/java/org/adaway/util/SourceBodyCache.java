@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.adaway.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import gnu.trove.set.hash.THashSet;
+
+import android.content.Context;
+
+/**
+ * Keeps the last successfully downloaded body of every hosts source gzip compressed in app-private
+ * storage, so a source that fails to download or a device without connection can use its last
+ * known good copy instead of dropping all its hostnames.
+ * <p/>
+ * A body is written while it is downloaded and only replaces the cached copy after the download
+ * has been read completely. Length and CRC32 of the uncompressed body are stored in the header
+ * and checked when it is read again.
+ */
+public class SourceBodyCache {
+    private static final int MAGIC = 0x41444142; // "ADAB"
+    private static final int FORMAT_VERSION = 1;
+    // length and checksum follow magic and version
+    private static final int CHECKSUM_OFFSET = 8;
+
+    private static final String BODY_SUFFIX = ".gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+
+    public SourceBodyCache(Context context) {
+        mDirectory = new File(context.getFilesDir(), Constants.SOURCE_CACHE_DIRECTORY);
+    }
+
+    /**
+     * @param url url of hosts source
+     * @return true if there is a cached copy of hosts source
+     */
+    public boolean contains(String url) {
+        return getBodyFile(url).exists();
+    }
+
+    /**
+     * Wrap body of download, everything read from the returned stream is also written into the
+     * cache. The cached copy is only replaced when commit() is called after reading to the end.
+     *
+     * @param url url of hosts source
+     * @param in  body of download
+     * @return stream to read the body from, has to be closed by the caller
+     */
+    public CachingInputStream cache(String url, InputStream in) {
+        File file = getBodyFile(url);
+        return new CachingInputStream(in, url, file, new File(file.getPath() + TEMP_SUFFIX));
+    }
+
+    /**
+     * Open cached copy of hosts source. Reading throws an IOException at the end if the copy is
+     * corrupt.
+     *
+     * @param url url of hosts source
+     * @return uncompressed body or null if there is no cached copy
+     * @throws IOException
+     */
+    public InputStream open(String url) throws IOException {
+        File file = getBodyFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE));
+        boolean valid = false;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            long length = in.readLong();
+            long checksum = in.readLong();
+            if (!in.readUTF().equals(url)) {
+                return null;
+            }
+
+            InputStream body = new VerifyingInputStream(new GZIPInputStream(in, BUFFER_SIZE),
+                    length, checksum, url);
+            valid = true;
+            return body;
+        } finally {
+            if (!valid) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Delete cached copies of hosts sources that are not in urls anymore
+     *
+     * @param urls urls of hosts sources to keep
+     */
+    public void retain(Collection<String> urls) {
+        THashSet<String> names = new THashSet<String>();
+        for (String url : urls) {
+            names.add(getBodyFile(url).getName());
+        }
+
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(BODY_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!names.contains(file.getName()) && file.delete()) {
+                Log.d(Constants.TAG, "Deleted cached copy " + file.getName());
+            }
+        }
+    }
+
+    private File getBodyFile(String url) {
+        return new File(mDirectory, Utils.sha1(url) + BODY_SUFFIX);
+    }
+
+    /**
+     * Writes everything that is read into a temp file. Problems while writing are only logged,
+     * the download itself does not fail because of the cache.
+     */
+    public class CachingInputStream extends FilterInputStream {
+        private final String mUrl;
+        private final File mFile;
+        private final File mTemp;
+
+        private GZIPOutputStream mOut;
+        private final CRC32 mChecksum = new CRC32();
+        private long mLength;
+        private boolean mEnd;
+        private boolean mCommitted;
+
+        CachingInputStream(InputStream in, String url, File file, File temp) {
+            super(in);
+            mUrl = url;
+            mFile = file;
+            mTemp = temp;
+
+            try {
+                if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                    throw new IOException("Could not create directory " + mDirectory);
+                }
+                DataOutputStream header = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(temp), BUFFER_SIZE));
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT_VERSION);
+                // length and checksum are written by commit()
+                header.writeLong(0);
+                header.writeLong(0);
+                header.writeUTF(url);
+                mOut = new GZIPOutputStream(header, BUFFER_SIZE) {
+                    {
+                        // compressed while downloading, speed matters more than size
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Could not cache " + url, e);
+                abort();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                mEnd = true;
+            } else {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                mEnd = true;
+            } else {
+                write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped bytes have to be cached too
+            byte[] buffer = new byte[(int) Math.min(count, BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+                mChecksum.update(buffer, offset, count);
+                mLength += count;
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Could not cache " + mUrl, e);
+                abort();
+            }
+        }
+
+        /**
+         * Replace cached copy with the body read until now. Does nothing if the body was not read
+         * to the end.
+         */
+        public void commit() {
+            if (mOut == null || !mEnd) {
+                return;
+            }
+            try {
+                mOut.close();
+                mOut = null;
+
+                RandomAccessFile raf = new RandomAccessFile(mTemp, "rw");
+                try {
+                    raf.seek(CHECKSUM_OFFSET);
+                    raf.writeLong(mLength);
+                    raf.writeLong(mChecksum.getValue());
+                } finally {
+                    raf.close();
+                }
+
+                if (!mTemp.renameTo(mFile)) {
+                    throw new IOException("Could not rename " + mTemp + " to " + mFile);
+                }
+                mCommitted = true;
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Could not cache " + mUrl, e);
+                abort();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!mCommitted) {
+                    abort();
+                }
+            }
+        }
+
+        private void abort() {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Exception on close of cached copy.", e);
+                }
+                mOut = null;
+            }
+            mTemp.delete();
+        }
+    }
+
+    /**
+     * Checks length and checksum when the end of the cached body is reached
+     */
+    private static class VerifyingInputStream extends FilterInputStream {
+        private final long mExpectedLength;
+        private final long mExpectedChecksum;
+        private final String mUrl;
+
+        private final CRC32 mChecksum = new CRC32();
+        private long mLength;
+
+        VerifyingInputStream(InputStream in, long length, long checksum, String url) {
+            super(in);
+            mExpectedLength = length;
+            mExpectedChecksum = checksum;
+            mUrl = url;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int read = read(buffer, 0, 1);
+            return read == -1 ? -1 : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                if (mLength != mExpectedLength || mChecksum.getValue() != mExpectedChecksum) {
+                    throw new IOException("Cached copy of " + mUrl + " is corrupt");
+                }
+            } else {
+                mChecksum.update(buffer, offset, read);
+                mLength += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(count, BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+
+import gnu.trove.set.hash.THashSet;
+
+import android.content.Context;
+
+/**
+ * Caches the parsed lists of every hosts source in a binary snapshot file in app-private storage.
+ * A snapshot is only used if url, Last-Modified and ETag headers, parser version and parser options
+ * are the same as when it was written, so an unchanged source does not have to be downloaded and
+ * parsed again. The headers of a snapshot can be sent as validators of a conditional request,
+ * a 304 Not Modified response means that the snapshot can be used.
+ * <p/>
+ * Snapshots of enabled hosts sources are always kept. Snapshots of other sources are limited to
+ * MAX_ORPHAN_SIZE bytes, least recently used ones are deleted first.
+ */
+public class SourceSnapshotCache {
+    private static final int MAGIC = 0x41444153; // "ADAS"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAX_ORPHAN_SIZE = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+    private final boolean mParseWhitelist;
+    private final boolean mParseRedirections;
+
+    public SourceSnapshotCache(Context context, boolean parseWhitelist,
+                               boolean parseRedirections) {
+        mDirectory = new File(context.getFilesDir(), Constants.SNAPSHOT_DIRECTORY);
+        mParseWhitelist = parseWhitelist;
+        mParseRedirections = parseRedirections;
+    }
+
+    /**
+     * Headers of the response a snapshot was parsed from
+     */
+    public static class Validators {
+        public final long lastModified;
+        public final String etag;
+
+        public Validators(long lastModified, String etag) {
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * Get headers of the snapshot of hosts source, without reading the lists
+     *
+     * @param url url of hosts source
+     * @return validators or null if there is no usable snapshot
+     */
+    public Validators getValidators(String url) {
+        File file = getSnapshotFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return readHeader(in, url);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Problem while reading snapshot of " + url, e);
+            return null;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Exception on close of snapshot.", e);
+            }
+        }
+    }
+
+    /**
+     * Load snapshot of hosts source
+     *
+     * @param url          url of hosts source
+     * @param lastModified Last-Modified of hosts source on server, 0 if unknown
+     * @param etag         ETag of hosts source on server, null if unknown
+     * @return parser containing the lists of the source or null if there is no valid snapshot
+     */
+    public HostsParser load(String url, long lastModified, String etag) {
+        if (!isCacheable(lastModified, etag)) {
+            return null;
+        }
+
+        File file = getSnapshotFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        HostsParser parser = null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    BUFFER_SIZE));
+            parser = readSnapshot(in, url, lastModified, etag);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Problem while reading snapshot of " + url, e);
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Exception on close of snapshot.", e);
+            }
+        }
+
+        if (parser == null) {
+            // outdated or broken
+            if (!file.delete()) {
+                Log.e(Constants.TAG, "Could not delete snapshot " + file);
+            }
+            return null;
+        }
+
+        // remember usage for LRU eviction
+        file.setLastModified(System.currentTimeMillis());
+
+        Log.d(Constants.TAG, "Loaded snapshot of " + url + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return parser;
+    }
+
+    /**
+     * Save lists of hosts source as snapshot. Nothing is saved if Last-Modified and ETag are
+     * unknown.
+     *
+     * @param url          url of hosts source
+     * @param lastModified Last-Modified of hosts source on server, 0 if unknown
+     * @param etag         ETag of hosts source on server, null if unknown
+     * @param parser       parser that only parsed this hosts source
+     */
+    public void save(String url, long lastModified, String etag, HostsParser parser) {
+        if (!isCacheable(lastModified, etag)) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(Constants.TAG, "Could not create snapshot directory " + mDirectory);
+            return;
+        }
+
+        File file = getSnapshotFile(url);
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                    BUFFER_SIZE));
+            writeSnapshot(out, url, lastModified, etag, parser);
+            out.close();
+            out = null;
+            // replace old snapshot only with a complete one
+            written = temp.renameTo(file);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Problem while writing snapshot of " + url, e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Exception on close of snapshot.", e);
+            }
+            if (!written) {
+                temp.delete();
+            }
+        }
+    }
+
+    private void writeSnapshot(DataOutputStream out, String url, long lastModified, String etag,
+                               HostsParser parser) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(HostsParser.VERSION);
+        out.writeBoolean(mParseWhitelist);
+        out.writeBoolean(mParseRedirections);
+        out.writeUTF(url);
+        out.writeLong(lastModified);
+        out.writeUTF(etag == null ? "" : etag);
+
+        parser.getBlacklist().writeTo(out);
+
+        out.writeInt(parser.getWhitelist().size());
+        for (String hostname : parser.getWhitelist()) {
+            out.writeUTF(hostname);
+        }
+
+        out.writeInt(parser.getRedirectionList().size());
+        for (Map.Entry<String, String> item : parser.getRedirectionList().entrySet()) {
+            out.writeUTF(item.getKey());
+            out.writeUTF(item.getValue());
+        }
+    }
+
+    /**
+     * @return validators or null if snapshot is of another format, parser or url
+     */
+    private Validators readHeader(DataInputStream in, String url) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                || in.readInt() != HostsParser.VERSION || in.readBoolean() != mParseWhitelist
+                || in.readBoolean() != mParseRedirections || !in.readUTF().equals(url)) {
+            return null;
+        }
+
+        long lastModified = in.readLong();
+        String etag = in.readUTF();
+        return new Validators(lastModified, etag.length() == 0 ? null : etag);
+    }
+
+    private HostsParser readSnapshot(DataInputStream in, String url, long lastModified,
+                                     String etag) throws IOException {
+        Validators validators = readHeader(in, url);
+        if (validators == null || validators.lastModified != lastModified
+                || !(etag == null ? validators.etag == null : etag.equals(validators.etag))) {
+            return null;
+        }
+
+        HostsParser parser = new HostsParser(mParseWhitelist, mParseRedirections);
+
+        parser.getBlacklist().readFrom(in);
+
+        for (int i = in.readInt(); i > 0; i--) {
+            parser.getWhitelist().add(in.readUTF());
+        }
+
+        for (int i = in.readInt(); i > 0; i--) {
+            parser.getRedirectionList().put(in.readUTF(), in.readUTF());
+        }
+
+        return parser;
+    }
+
+    /**
+     * Keep snapshots of hosts sources in urls and delete least recently used snapshots of other
+     * sources until they are smaller than MAX_ORPHAN_SIZE. Temp files are skipped, they may be
+     * written by another download at the same time.
+     *
+     * @param urls urls of enabled hosts sources
+     */
+    public void retain(Collection<String> urls) {
+        THashSet<String> names = new THashSet<String>();
+        for (String url : urls) {
+            names.add(getSnapshotFile(url).getName());
+        }
+
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(SNAPSHOT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        ArrayList<File> orphans = new ArrayList<File>();
+        long size = 0;
+        for (File file : files) {
+            if (!names.contains(file.getName())) {
+                orphans.add(file);
+                size += file.length();
+            }
+        }
+        if (size <= MAX_ORPHAN_SIZE) {
+            return;
+        }
+
+        Collections.sort(orphans, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long lastUsed1 = file1.lastModified();
+                long lastUsed2 = file2.lastModified();
+                return lastUsed1 < lastUsed2 ? -1 : (lastUsed1 == lastUsed2 ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < orphans.size() && size > MAX_ORPHAN_SIZE; i++) {
+            File file = orphans.get(i);
+            long length = file.length();
+            if (file.delete()) {
+                Log.d(Constants.TAG, "Evicted snapshot " + file.getName());
+                size -= length;
+            }
+        }
+    }
+
+    private static boolean isCacheable(long lastModified, String etag) {
+        return lastModified != 0 || etag != null;
+    }
+
+    private File getSnapshotFile(String url) {
+        return new File(mDirectory, Utils.sha1(url) + SNAPSHOT_SUFFIX);
+    }
+}
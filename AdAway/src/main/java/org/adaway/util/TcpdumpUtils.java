@@ -25,9 +25,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 
 import org.adaway.R;
+import org.sufficientlysecure.rootcommands.PidRegistry;
 import org.sufficientlysecure.rootcommands.Shell;
-import org.sufficientlysecure.rootcommands.Toolbox;
-import org.sufficientlysecure.rootcommands.command.SimpleExecutableCommand;
+import org.sufficientlysecure.rootcommands.command.BackgroundExecutableCommand;
 
 import android.content.Context;
 import android.widget.Toast;
@@ -64,13 +64,13 @@ public class TcpdumpUtils {
         // "-t": don't print a timestamp
         // "-s 0": capture first 512 bit of packet to get DNS content
         String parameters = "-i any -p -l -v -t -s 512 'udp dst port 53' >> " + cachePath
-                + Constants.FILE_SEPERATOR + Constants.TCPDUMP_LOG + " 2>&1 &";
+                + Constants.FILE_SEPERATOR + Constants.TCPDUMP_LOG + " 2>&1";
 
-        SimpleExecutableCommand tcpdumpCommand = new SimpleExecutableCommand(context,
+        BackgroundExecutableCommand tcpdumpCommand = new BackgroundExecutableCommand(context,
                 Constants.TCPDUMP_EXECUTEABLE, parameters);
 
         try {
-            shell.add(tcpdumpCommand).waitForFinish();
+            new PidRegistry(context).start(shell, tcpdumpCommand);
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception while starting tcpdump", e);
             return false;
@@ -111,8 +111,7 @@ public class TcpdumpUtils {
      */
     public static void stopTcpdump(Context context, Shell shell) {
         try {
-            Toolbox tb = new Toolbox(shell);
-            tb.killAllExecutable(Constants.TCPDUMP_EXECUTEABLE);
+            new PidRegistry(context).kill(shell, Constants.TCPDUMP_EXECUTEABLE);
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception while killing tcpdump", e);
         }
@@ -123,11 +122,9 @@ public class TcpdumpUtils {
      * 
      * @return true if tcpdump is running
      */
-    public static boolean isTcpdumpRunning(Shell shell) {
+    public static boolean isTcpdumpRunning(Context context, Shell shell) {
         try {
-            Toolbox tb = new Toolbox(shell);
-
-            if (tb.isBinaryRunning(Constants.TCPDUMP_EXECUTEABLE)) {
+            if (new PidRegistry(context).isRunning(shell, Constants.TCPDUMP_EXECUTEABLE)) {
                 return true;
             } else {
                 return false;
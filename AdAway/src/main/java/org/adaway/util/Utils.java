@@ -20,6 +20,9 @@
 
 package org.adaway.util;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -28,6 +31,7 @@ import org.adaway.helper.PreferenceHelper;
 import org.adaway.util.Log;
 import org.sufficientlysecure.rootcommands.RootCommands;
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
 import org.sufficientlysecure.rootcommands.Toolbox;
 
 import android.annotation.SuppressLint;
@@ -128,13 +132,16 @@ public class Utils {
                             PreferenceHelper.setNeverReboot(context, true);
                         }
 
+                        Shell rootShell = null;
                         try {
-                            Shell rootShell = Shell.startRootShell();
+                            rootShell = ShellPool.getRootShellPool().acquire();
 
                             Toolbox tb = new Toolbox(rootShell);
                             tb.reboot(Toolbox.REBOOT_REBOOT);
                         } catch (Exception e) {
                             Log.e(Constants.TAG, "Problem with rebooting", e);
+                        } finally {
+                            ShellPool.getRootShellPool().release(rootShell);
                         }
                     }
                 }
@@ -256,4 +263,36 @@ public class Utils {
 
         return foreground;
     }
+
+    /**
+     * Encode digest or other bytes as lowercase hex string
+     *
+     * @param bytes
+     * @return
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * SHA-1 of UTF-8 encoded input as hex string, e.g. to get file names for urls
+     *
+     * @param input
+     * @return
+     */
+    public static String sha1(String input) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return toHex(digest.digest(input.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -21,9 +21,10 @@
 package org.adaway.util;
 
 import org.adaway.helper.PreferenceHelper;
+import org.sufficientlysecure.rootcommands.PidRegistry;
 import org.sufficientlysecure.rootcommands.Shell;
-import org.sufficientlysecure.rootcommands.Toolbox;
-import org.sufficientlysecure.rootcommands.command.SimpleExecutableCommand;
+import org.sufficientlysecure.rootcommands.ShellPool;
+import org.sufficientlysecure.rootcommands.command.BackgroundExecutableCommand;
 
 import android.content.Context;
 
@@ -38,10 +39,10 @@ public class WebserverUtils {
         Log.d(Constants.TAG, "Starting webserver...");
 
         try {
-            SimpleExecutableCommand webserverCommand = new SimpleExecutableCommand(context,
-                    Constants.WEBSERVER_EXECUTEABLE, " > /dev/null 2>&1 &");
+            BackgroundExecutableCommand webserverCommand = new BackgroundExecutableCommand(context,
+                    Constants.WEBSERVER_EXECUTEABLE, " > /dev/null 2>&1");
 
-            shell.add(webserverCommand).waitForFinish();
+            new PidRegistry(context).start(shell, webserverCommand);
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception while starting webserver", e);
         }
@@ -55,12 +56,14 @@ public class WebserverUtils {
     public static void startWebserverOnBoot(Context context) {
         // start webserver on boot if enabled in preferences
         if (PreferenceHelper.getWebserverOnBoot(context)) {
+            Shell rootShell = null;
             try {
-                Shell rootShell = Shell.startRootShell();
+                rootShell = ShellPool.getRootShellPool().acquire();
                 startWebserver(context, rootShell);
-                rootShell.close();
             } catch (Exception e) {
                 Log.e(Constants.TAG, "Problem while starting webserver on boot!", e);
+            } finally {
+                ShellPool.getRootShellPool().release(rootShell);
             }
         }
     }
@@ -72,8 +75,7 @@ public class WebserverUtils {
      */
     public static void stopWebserver(Context context, Shell shell) {
         try {
-            Toolbox tb = new Toolbox(shell);
-            tb.killAllExecutable(Constants.WEBSERVER_EXECUTEABLE);
+            new PidRegistry(context).kill(shell, Constants.WEBSERVER_EXECUTEABLE);
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception while killing webserver", e);
         }
@@ -84,11 +86,9 @@ public class WebserverUtils {
      *
      * @return true if webserver is running
      */
-    public static boolean isWebserverRunning(Shell shell) {
+    public static boolean isWebserverRunning(Context context, Shell shell) {
         try {
-            Toolbox tb = new Toolbox(shell);
-
-            if (tb.isBinaryRunning(Constants.WEBSERVER_EXECUTEABLE)) {
+            if (new PidRegistry(context).isRunning(shell, Constants.WEBSERVER_EXECUTEABLE)) {
                 return true;
             } else {
                 return false;
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2011-2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of AdAway.
+ *
+ * AdAway is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AdAway is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AdAway.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.adaway.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * Compiles all whitelist wildcards (* and ?) into one structure, so that every hostname is tested
+ * once instead of once per whitelist entry. Matches exactly like the regex produced by
+ * RegexUtils.wildcardToRegex for every single entry:
+ * <ul>
+ * <li>entries without wildcards are looked up in a hash set</li>
+ * <li>entries like *.example.com are put into a trie of reversed characters</li>
+ * <li>entries like ads.* are put into a trie of characters</li>
+ * <li>all other entries are merged into one bit-parallel automaton (Shift-And with stars)</li>
+ * </ul>
+ * Entries with characters that have a different meaning in regex and hostnames with characters
+ * outside of printable ASCII are handled by the old regex matching.
+ * <p/>
+ * Not thread-safe, matches() reuses its state arrays.
+ */
+public class WhitelistMatcher {
+    private static final char STAR = '*';
+    private static final char ANY = '?';
+    private static final int ASCII_SIZE = 128;
+
+    private final Collection<String> mWildcards;
+
+    private boolean mMatchAll;
+    private final THashSet<String> mExact = new THashSet<String>();
+    private final CharTrie mSuffixes = new CharTrie();
+    private final CharTrie mPrefixes = new CharTrie();
+
+    // automaton, one bit per position in every merged wildcard
+    private int mWords;
+    private long[][] mCharMasks;
+    private long[] mStartMask;
+    private long[] mStarMask;
+    private long[] mAcceptMask;
+    private long[] mActive;
+    private long[] mNext;
+
+    private final ArrayList<Pattern> mFallbackPatterns = new ArrayList<Pattern>();
+    private ArrayList<Pattern> mAllPatterns;
+
+    public WhitelistMatcher(Collection<String> wildcards) {
+        mWildcards = wildcards;
+
+        ArrayList<String> globs = new ArrayList<String>();
+        for (String wildcard : wildcards) {
+            if (!isPlainWildcard(wildcard)) {
+                addPattern(mFallbackPatterns, wildcard);
+                continue;
+            }
+
+            String glob = collapseStars(wildcard);
+            int firstWildcard = indexOfWildcard(glob, 0, glob.length());
+            int length = glob.length();
+
+            if (firstWildcard == -1) {
+                mExact.add(glob);
+            } else if (length == 1 && glob.charAt(0) == STAR) {
+                mMatchAll = true;
+            } else if (firstWildcard == 0 && glob.charAt(0) == STAR
+                    && indexOfWildcard(glob, 1, length) == -1) {
+                mSuffixes.add(glob.substring(1), true);
+            } else if (firstWildcard == length - 1 && glob.charAt(length - 1) == STAR) {
+                mPrefixes.add(glob.substring(0, length - 1), false);
+            } else {
+                globs.add(glob);
+            }
+        }
+
+        if (!globs.isEmpty()) {
+            compileAutomaton(globs);
+        }
+    }
+
+    public boolean isEmpty() {
+        return mWildcards.isEmpty();
+    }
+
+    /**
+     * @return true if hostname matches at least one whitelist entry
+     */
+    public boolean matches(String hostname) {
+        if (!isPlainHostname(hostname)) {
+            if (mAllPatterns == null) {
+                mAllPatterns = new ArrayList<Pattern>();
+                for (String wildcard : mWildcards) {
+                    addPattern(mAllPatterns, wildcard);
+                }
+            }
+            return matchesPatterns(mAllPatterns, hostname);
+        }
+
+        if (mMatchAll || mExact.contains(hostname)) {
+            return true;
+        }
+        if (mSuffixes.matches(hostname, true) || mPrefixes.matches(hostname, false)) {
+            return true;
+        }
+        if (mWords > 0 && matchesAutomaton(hostname)) {
+            return true;
+        }
+        return !mFallbackPatterns.isEmpty() && matchesPatterns(mFallbackPatterns, hostname);
+    }
+
+    private void compileAutomaton(ArrayList<String> globs) {
+        int states = 0;
+        for (String glob : globs) {
+            states += glob.length() + 1;
+        }
+
+        mWords = (states + 63) >>> 6;
+        mCharMasks = new long[ASCII_SIZE][mWords];
+        mStartMask = new long[mWords];
+        mStarMask = new long[mWords];
+        mAcceptMask = new long[mWords];
+        mActive = new long[mWords];
+        mNext = new long[mWords];
+
+        int base = 0;
+        for (String glob : globs) {
+            int length = glob.length();
+            setBit(mStartMask, base);
+            for (int i = 0; i < length; i++) {
+                char c = glob.charAt(i);
+                int state = base + i;
+                if (c == STAR) {
+                    setBit(mStarMask, state);
+                } else if (c == ANY) {
+                    for (int ch = 0; ch < ASCII_SIZE; ch++) {
+                        setBit(mCharMasks[ch], state);
+                    }
+                } else {
+                    setBit(mCharMasks[c], state);
+                }
+            }
+            setBit(mAcceptMask, base + length);
+            base += length + 1;
+        }
+
+        // a star at the start can already be skipped before the first character
+        System.arraycopy(mStartMask, 0, mNext, 0, mWords);
+        closeStars(mNext);
+        System.arraycopy(mNext, 0, mStartMask, 0, mWords);
+    }
+
+    private boolean matchesAutomaton(String hostname) {
+        long[] active = mActive;
+        long[] next = mNext;
+        System.arraycopy(mStartMask, 0, active, 0, mWords);
+
+        for (int i = 0, length = hostname.length(); i < length; i++) {
+            long[] mask = mCharMasks[hostname.charAt(i)];
+            long carry = 0;
+            for (int w = 0; w < mWords; w++) {
+                long a = active[w];
+                long step = a & mask[w];
+                // positions matching this character advance, stars stay where they are
+                next[w] = (step << 1) | carry | (a & mStarMask[w]);
+                carry = step >>> 63;
+            }
+            if (!closeStars(next)) {
+                return false;
+            }
+
+            long[] tmp = active;
+            active = next;
+            next = tmp;
+        }
+
+        for (int w = 0; w < mWords; w++) {
+            if ((active[w] & mAcceptMask[w]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stars may match nothing, also activate the position after every active star. Consecutive
+     * stars are collapsed, so one step is enough.
+     *
+     * @return false if no position is active anymore
+     */
+    private boolean closeStars(long[] states) {
+        long carry = 0;
+        boolean active = false;
+        for (int w = 0; w < mWords; w++) {
+            long stars = states[w] & mStarMask[w];
+            states[w] |= (stars << 1) | carry;
+            carry = stars >>> 63;
+            active |= states[w] != 0;
+        }
+        return active;
+    }
+
+    private static void setBit(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << (index & 63);
+    }
+
+    private static boolean matchesPatterns(ArrayList<Pattern> patterns, String hostname) {
+        for (Pattern pattern : patterns) {
+            try {
+                if (pattern.matcher(hostname).find()) {
+                    return true;
+                }
+            } catch (Exception e) {
+                // workaround for some devices that throws jni exceptions: dont use whitelist
+                Log.e(Constants.TAG, "Error in whitelist regex processing", e);
+            }
+        }
+        return false;
+    }
+
+    private static void addPattern(ArrayList<Pattern> patterns, String wildcard) {
+        // convert example*.* to regex: ^example.*\\..*$
+        patterns.add(Pattern.compile(RegexUtils.wildcardToRegex(wildcard)));
+    }
+
+    /**
+     * Only characters that wildcardToRegex turns into literals or wildcards
+     */
+    private static boolean isPlainWildcard(String wildcard) {
+        for (int i = 0, length = wildcard.length(); i < length; i++) {
+            char c = wildcard.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == STAR || c == ANY)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Printable ASCII, no line terminators or surrogates the regex dot would treat differently
+     */
+    private static boolean isPlainHostname(String hostname) {
+        for (int i = 0, length = hostname.length(); i < length; i++) {
+            char c = hostname.charAt(i);
+            if (c <= ' ' || c >= 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String collapseStars(String wildcard) {
+        if (wildcard.indexOf("**") == -1) {
+            return wildcard;
+        }
+        StringBuilder glob = new StringBuilder(wildcard.length());
+        for (int i = 0, length = wildcard.length(); i < length; i++) {
+            char c = wildcard.charAt(i);
+            if (c != STAR || i == 0 || wildcard.charAt(i - 1) != STAR) {
+                glob.append(c);
+            }
+        }
+        return glob.toString();
+    }
+
+    private static int indexOfWildcard(String glob, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = glob.charAt(i);
+            if (c == STAR || c == ANY) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Trie over characters of literal prefixes or, added reversed, literal suffixes
+     */
+    private static class CharTrie {
+        private final Node mRoot = new Node();
+
+        void add(String literal, boolean reversed) {
+            Node node = mRoot;
+            for (int i = 0, length = literal.length(); i < length; i++) {
+                node = node.getOrAdd(literal.charAt(reversed ? length - 1 - i : i));
+            }
+            node.mTerminal = true;
+        }
+
+        /**
+         * @return true if a literal added with the same direction is a prefix (or suffix) of s
+         */
+        boolean matches(String s, boolean reversed) {
+            Node node = mRoot;
+            for (int i = 0, length = s.length(); i < length; i++) {
+                node = node.get(s.charAt(reversed ? length - 1 - i : i));
+                if (node == null) {
+                    return false;
+                }
+                if (node.mTerminal) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Node {
+        private char[] mKeys = new char[0];
+        private Node[] mChildren = new Node[0];
+        private boolean mTerminal;
+
+        Node get(char c) {
+            char[] keys = mKeys;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return mChildren[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrAdd(char c) {
+            Node child = get(c);
+            if (child == null) {
+                int size = mKeys.length;
+                char[] keys = new char[size + 1];
+                Node[] children = new Node[size + 1];
+                System.arraycopy(mKeys, 0, keys, 0, size);
+                System.arraycopy(mChildren, 0, children, 0, size);
+                child = new Node();
+                keys[size] = c;
+                children[size] = child;
+                mKeys = keys;
+                mChildren = children;
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+
+/**
+ * Commands added to a shell with Shell.addBatch(). They are written in one flush and their exit
+ * codes are read in one pass over the output, so a multi-step operation needs only one round trip.
+ */
+public class CommandBatch {
+    private final Command[] mCommands;
+
+    CommandBatch(Command[] commands) {
+        mCommands = commands;
+    }
+
+    /**
+     * Waits for all commands of this batch to finish
+     * 
+     * @return this batch
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public CommandBatch waitForFinish() throws TimeoutException, BrokenBusyboxException {
+        for (Command command : mCommands) {
+            command.waitForFinish();
+        }
+        return this;
+    }
+
+    public int size() {
+        return mCommands.length;
+    }
+
+    public Command getCommand(int index) {
+        return mCommands[index];
+    }
+
+    /**
+     * Exit code of command at index, only valid after waitForFinish()
+     * 
+     * @param index
+     * @return
+     */
+    public int getExitCode(int index) {
+        return mCommands[index].getExitCode();
+    }
+
+    /**
+     * @return true if all commands exited with 0, only valid after waitForFinish()
+     */
+    public boolean isSuccessful() {
+        for (Command command : mCommands) {
+            if (command.getExitCode() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
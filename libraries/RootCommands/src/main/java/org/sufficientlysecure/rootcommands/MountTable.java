@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Mount points of /proc/mounts in a trie of path components, the mount a path is located on is
+ * found by longest prefix lookup.
+ * <p/>
+ * The table is read with the shell of the caller and cached for the whole process. It is
+ * invalidated after every remount and read again after MAX_AGE, because other processes could
+ * remount partitions meanwhile.
+ */
+//no modifier, this means it is package-private. Only our internal classes can use this.
+class MountTable {
+    private static final long MAX_AGE = 10 * 1000;
+
+    private static MountTable sCached;
+    private static long sCachedTime;
+
+    private final Node mRoot = new Node();
+    private final ArrayList<Mount> mMounts = new ArrayList<Mount>();
+
+    /**
+     * Get cached mount table or read /proc/mounts using the given shell
+     *
+     * @param shell shell to read /proc/mounts with, needs root on Android 4.3 and above
+     * @return
+     * @throws IOException
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public static MountTable get(Shell shell) throws BrokenBusyboxException, TimeoutException,
+            IOException {
+        synchronized (MountTable.class) {
+            if (sCached != null && System.currentTimeMillis() - sCachedTime < MAX_AGE) {
+                return sCached;
+            }
+        }
+
+        // /proc/mounts is not readable by apps on 4.3, read it with cat on the shell
+        MountsCommand command = new MountsCommand();
+        shell.add(command).waitForFinish();
+        if (command.getExitCode() != 0) {
+            throw new IOException("Reading /proc/mounts failed with exit code "
+                    + command.getExitCode());
+        }
+
+        MountTable table = command.getMountTable();
+        synchronized (MountTable.class) {
+            sCached = table;
+            sCachedTime = System.currentTimeMillis();
+        }
+        return table;
+    }
+
+    /**
+     * Forget the cached mount table, e.g. after a remount
+     */
+    public static synchronized void invalidate() {
+        sCached = null;
+    }
+
+    /**
+     * Find the mount a file is located on
+     *
+     * @param path absolute path, can contain the file name
+     * @return mount with the longest mount point that is a parent of path or path itself, null if
+     *         not found
+     */
+    public Mount find(String path) {
+        Node node = mRoot;
+        Mount found = node.mMount;
+
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            // skip empty components of leading, trailing or double slashes
+            if (end > start) {
+                node = node.mChildren.get(path.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+                if (node.mMount != null) {
+                    found = node.mMount;
+                }
+            }
+            start = end + 1;
+        }
+
+        return found;
+    }
+
+    /**
+     * @return all mounts in the order of /proc/mounts
+     */
+    public ArrayList<Mount> getMounts() {
+        return mMounts;
+    }
+
+    private void add(Mount mount) {
+        mMounts.add(mount);
+
+        Node node = mRoot;
+        String path = mount.getMountPoint().getPath();
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            if (end > start) {
+                String component = path.substring(start, end);
+                Node child = node.mChildren.get(component);
+                if (child == null) {
+                    child = new Node();
+                    node.mChildren.put(component, child);
+                }
+                node = child;
+            }
+            start = end + 1;
+        }
+
+        // later mounts on the same mount point hide the earlier ones
+        node.mMount = mount;
+    }
+
+    /**
+     * Parse one line of /proc/mounts: device mountPoint fstype flags freq passno
+     *
+     * @return mount or null if line is malformed
+     */
+    static Mount parseLine(String line) {
+        int deviceEnd = line.indexOf(' ');
+        if (deviceEnd <= 0) {
+            return null;
+        }
+        int mountPointEnd = line.indexOf(' ', deviceEnd + 1);
+        if (mountPointEnd == -1) {
+            return null;
+        }
+        int typeEnd = line.indexOf(' ', mountPointEnd + 1);
+        if (typeEnd == -1) {
+            return null;
+        }
+        int flagsEnd = line.indexOf(' ', typeEnd + 1);
+        if (flagsEnd == -1) {
+            flagsEnd = line.length();
+        }
+
+        return new Mount(new File(unescape(line.substring(0, deviceEnd))),
+                new File(unescape(line.substring(deviceEnd + 1, mountPointEnd))),
+                line.substring(mountPointEnd + 1, typeEnd),
+                line.substring(typeEnd + 1, flagsEnd));
+    }
+
+    /**
+     * The kernel escapes space, tab, newline and backslash as octal, e.g. \040
+     */
+    private static String unescape(String field) {
+        if (field.indexOf('\\') == -1) {
+            return field;
+        }
+
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0, length = field.length(); i < length; i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 3 < length && isOctal(field.charAt(i + 1))
+                    && isOctal(field.charAt(i + 2)) && isOctal(field.charAt(i + 3))) {
+                sb.append((char) ((field.charAt(i + 1) - '0') * 64
+                        + (field.charAt(i + 2) - '0') * 8 + (field.charAt(i + 3) - '0')));
+                i += 3;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isOctal(char c) {
+        return c >= '0' && c <= '7';
+    }
+
+    private static class Node {
+        final HashMap<String, Node> mChildren = new HashMap<String, Node>();
+        Mount mMount;
+    }
+
+    private static class MountsCommand extends Command {
+        private final MountTable mTable = new MountTable();
+
+        public MountsCommand() {
+            super("cat /proc/mounts");
+        }
+
+        public MountTable getMountTable() {
+            return mTable;
+        }
+
+        @Override
+        public void output(int id, String line) {
+            Mount mount = parseLine(line);
+            if (mount != null) {
+                mTable.add(mount);
+            } else {
+                Log.d(RootCommands.TAG, "Ignoring line of /proc/mounts: " + line);
+            }
+        }
+
+        @Override
+        public void afterExecution(int id, int exitCode) {
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits shell output into lines inside one reused byte buffer. A line is only valid until the
+ * next call of nextLine(), it is given as start and end index into getBuffer(), without the line
+ * terminator. No Strings are created, so token lines can be found and parsed cheaply.
+ */
+//no modifier, this means it is package-private. Only our internal classes can use this.
+class OutputReader implements Closeable {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream mIn;
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+
+    // read but not yet returned bytes
+    private int mStart = 0;
+    private int mEnd = 0;
+
+    // current line
+    private int mLineStart = 0;
+    private int mLineEnd = 0;
+
+    public OutputReader(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Read next line, blocks until a line terminator or EOF is read
+     * 
+     * @return false on EOF
+     * @throws IOException
+     */
+    public boolean nextLine() throws IOException {
+        int searchFrom = mStart;
+        while (true) {
+            for (int i = searchFrom; i < mEnd; i++) {
+                if (mBuffer[i] == '\n') {
+                    setLine(mStart, i);
+                    mStart = i + 1;
+                    return true;
+                }
+            }
+
+            // no complete line in buffer, move remaining bytes to the front
+            if (mStart > 0) {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+                mEnd -= mStart;
+                mStart = 0;
+            }
+            searchFrom = mEnd;
+            // grow only for very long lines
+            if (mEnd == mBuffer.length) {
+                byte[] buffer = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, buffer, 0, mEnd);
+                mBuffer = buffer;
+            }
+
+            int read = mIn.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            if (read == -1) {
+                if (mEnd > mStart) {
+                    // last line without terminator
+                    setLine(mStart, mEnd);
+                    mStart = mEnd;
+                    return true;
+                }
+                return false;
+            }
+            mEnd += read;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        // strip \r of \r\n like BufferedReader.readLine()
+        if (end > start && mBuffer[end - 1] == '\r') {
+            end--;
+        }
+        mLineStart = start;
+        mLineEnd = end;
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLineStart() {
+        return mLineStart;
+    }
+
+    public int getLineEnd() {
+        return mLineEnd;
+    }
+
+    public boolean lineEquals(byte[] expected) {
+        if (mLineEnd - mLineStart != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (mBuffer[mLineStart + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse an integer of ASCII digits, optionally with leading minus, from start up to the next
+     * space or end of line
+     * 
+     * @param start index in buffer
+     * @return integer or Integer.MIN_VALUE if there is no valid number
+     */
+    public int parseInt(int start) {
+        boolean negative = start < mLineEnd && mBuffer[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= mLineEnd || mBuffer[i] == ' ') {
+            return Integer.MIN_VALUE;
+        }
+
+        long value = 0;
+        for (; i < mLineEnd && mBuffer[i] != ' '; i++) {
+            int digit = mBuffer[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                return Integer.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        if (value > Integer.MAX_VALUE) {
+            return Integer.MIN_VALUE;
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * @return index after the next space after start, or -1 if there is none in the line
+     */
+    public int skipField(int start) {
+        for (int i = start; i < mLineEnd; i++) {
+            if (mBuffer[i] == ' ') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Current line as String, only for error messages
+     */
+    public String lineToString() {
+        return new String(mBuffer, mLineStart, mLineEnd - mLineStart);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.command.BackgroundExecutableCommand;
+import org.sufficientlysecure.rootcommands.command.ExecutableCommand;
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the pids of executables started in the background, persisted in SharedPreferences.
+ * Whether an executable is running is checked by reading /proc/pid/cmdline of the registered pid.
+ * Executables that were killed through the registry or not found by ps are remembered as stopped,
+ * so checking them needs no command at all. ps is only used as fallback if nothing is known about
+ * the executable or the registered pid is stale, e.g. after a reboot.
+ * <p/>
+ * Executables started by someone else while they are remembered as stopped are not noticed, they
+ * are still killed by kill().
+ */
+public class PidRegistry {
+    private static final String PREFS_NAME = "rootcommands_pids";
+
+    // stored instead of a pid for executables that are known to be stopped
+    private static final int PID_STOPPED = 0;
+    private static final int PID_UNKNOWN = -1;
+
+    private final SharedPreferences mPrefs;
+
+    public PidRegistry(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Start executable in the background and register its pid
+     * 
+     * @param shell
+     * @param command
+     * @return true if a pid was returned by the shell
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public boolean start(Shell shell, BackgroundExecutableCommand command)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        shell.add(command).waitForFinish();
+
+        int pid = command.getPid();
+        if (pid > 0) {
+            Log.d(RootCommands.TAG, "Started " + command.getExecutableName() + " with pid " + pid);
+            put(command.getExecutableName(), pid);
+            return true;
+        } else {
+            remove(command.getExecutableName());
+            return false;
+        }
+    }
+
+    /**
+     * Checks if executable is running
+     * 
+     * @param shell
+     * @param executableName
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public boolean isRunning(Shell shell, String executableName) throws BrokenBusyboxException,
+            TimeoutException, IOException {
+        int pid = get(executableName);
+        if (pid == PID_STOPPED) {
+            return false;
+        }
+
+        Toolbox tb = new Toolbox(shell);
+        String processName = getProcessName(executableName);
+        if (pid > 0 && tb.isProcessRunning(pid, processName)) {
+            return true;
+        }
+
+        // registry is stale or unknown, fall back to ps and remember what it found
+        ArrayList<String> pids = tb.getPids(processName);
+        if (pids.isEmpty()) {
+            put(executableName, PID_STOPPED);
+            return false;
+        }
+        try {
+            put(executableName, Integer.parseInt(pids.get(0)));
+        } catch (NumberFormatException e) {
+            remove(executableName);
+        }
+        return true;
+    }
+
+    /**
+     * Kill the registered process of executable and all other processes of the executable found by
+     * ps, e.g. started by someone else. Afterwards the executable is remembered as stopped.
+     * 
+     * @param shell
+     * @param executableName
+     * @return true if a process was killed
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public boolean kill(Shell shell, String executableName) throws BrokenBusyboxException,
+            TimeoutException, IOException {
+        Toolbox tb = new Toolbox(shell);
+
+        boolean killed = false;
+        int pid = get(executableName);
+        if (pid > 0 && tb.isProcessRunning(pid, getProcessName(executableName))) {
+            killed = tb.kill(pid);
+        }
+
+        // also kill duplicate instances that are not registered
+        if (tb.killAllExecutable(executableName)) {
+            killed = true;
+        }
+
+        put(executableName, PID_STOPPED);
+        return killed;
+    }
+
+    /**
+     * Send signal to the registered process of executable, e.g. 1 (SIGHUP) to reload its
+     * configuration without restarting it
+     * 
+     * @param shell
+     * @param executableName
+     * @param signal
+     * @return true if the registered process is running and got the signal
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public boolean signal(Shell shell, String executableName, int signal)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        Toolbox tb = new Toolbox(shell);
+
+        int pid = get(executableName);
+        if (pid > 0 && tb.isProcessRunning(pid, getProcessName(executableName))) {
+            return tb.sendSignal(pid, signal);
+        }
+        return false;
+    }
+
+    /**
+     * @param executableName
+     * @return registered pid, 0 if known to be stopped or -1 if unknown
+     */
+    public int get(String executableName) {
+        return mPrefs.getInt(executableName, PID_UNKNOWN);
+    }
+
+    /**
+     * Register pid as returned by get(), e.g. to restore the previous instance when starting a
+     * replacement failed
+     * 
+     * @param executableName
+     * @param pid
+     *            pid, 0 if known to be stopped or -1 if unknown
+     */
+    public void set(String executableName, int pid) {
+        if (pid == PID_UNKNOWN) {
+            remove(executableName);
+        } else {
+            put(executableName, pid);
+        }
+    }
+
+    private void put(String executableName, int pid) {
+        mPrefs.edit().putInt(executableName, pid).commit();
+    }
+
+    private void remove(String executableName) {
+        mPrefs.edit().remove(executableName).commit();
+    }
+
+    private static String getProcessName(String executableName) {
+        return ExecutableCommand.EXECUTABLE_PREFIX + executableName
+                + ExecutableCommand.EXECUTABLE_SUFFIX;
+    }
+}
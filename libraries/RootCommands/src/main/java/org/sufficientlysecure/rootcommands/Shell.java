@@ -17,28 +17,42 @@
 
 package org.sufficientlysecure.rootcommands;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.CommandFuture;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
 import org.sufficientlysecure.rootcommands.util.Log;
 import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
 import org.sufficientlysecure.rootcommands.util.Utils;
 
+import android.util.SparseArray;
+
 public class Shell implements Closeable {
     private final Process shellProcess;
-    private final BufferedReader stdOutErr;
+    private final OutputReader stdOutErr;
     private final DataOutputStream outputStream;
-    private final List<Command> commands = new ArrayList<Command>();
+    // commands not written to the shell yet, also used as lock for runningCommands
+    private final LinkedList<Command> pendingCommands = new LinkedList<Command>();
+    // commands written to the shell that have not finished, by id
+    private final SparseArray<Command> runningCommands = new SparseArray<Command>();
+    private int nextCommandId = 0;
     private boolean close = false;
+    private boolean root = false;
 
     private static final String LD_LIBRARY_PATH = System.getenv("LD_LIBRARY_PATH");
     private static final String token = "F*D^W@#FGF";
+    private static final byte[] TOKEN_BYTES = token.getBytes();
+    private static final byte[] STARTED_BYTES = "Started".getBytes();
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_PENDING_COMMANDS = 256;
 
     /**
      * Start root shell
@@ -60,6 +74,7 @@ public class Shell implements Closeable {
         customEnv.add("LD_LIBRARY_PATH=" + LD_LIBRARY_PATH);
 
         Shell shell = new Shell(Utils.getSuPath(), customEnv, baseDirectory);
+        shell.root = true;
 
         return shell;
     }
@@ -135,24 +150,26 @@ public class Shell implements Closeable {
         shellProcess = Utils.runWithEnv(shell, customEnv, baseDirectory);
 
         // StdErr is redirected to StdOut, defined in Command.getCommand()
-        stdOutErr = new BufferedReader(new InputStreamReader(shellProcess.getInputStream()));
-        outputStream = new DataOutputStream(shellProcess.getOutputStream());
+        stdOutErr = new OutputReader(shellProcess.getInputStream());
+        // buffered, so that a batch of commands is written with one flush
+        outputStream = new DataOutputStream(new BufferedOutputStream(
+                shellProcess.getOutputStream(), WRITE_BUFFER_SIZE));
 
         outputStream.write("echo Started\n".getBytes());
         outputStream.flush();
 
         while (true) {
-            String line = stdOutErr.readLine();
-            if (line == null)
+            if (!stdOutErr.nextLine())
                 throw new RootAccessDeniedException(
                         "stdout line is null! Access was denied or this executeable is not a shell!");
-            if ("".equals(line))
+            if (stdOutErr.getLineStart() == stdOutErr.getLineEnd())
                 continue;
-            if ("Started".equals(line))
+            if (stdOutErr.lineEquals(STARTED_BYTES))
                 break;
 
             destroyShellProcess();
-            throw new IOException("Unable to start shell, unexpected output \"" + line + "\"");
+            throw new IOException("Unable to start shell, unexpected output \""
+                    + stdOutErr.lineToString() + "\"");
         }
 
         new Thread(inputRunnable, "Shell Input").start();
@@ -203,37 +220,47 @@ public class Shell implements Closeable {
 
     /**
      * Writes queued commands one after another into the opened shell. After an execution a token is
-     * written to seperate command output on read
+     * written to seperate command output on read. All commands queued at the same time, e.g. of a
+     * batch, are written with one flush.
      * 
      * @throws IOException
      */
     private void writeCommands() throws IOException {
         try {
-            int commandIndex = 0;
+            List<Command> writing = new ArrayList<Command>();
             while (true) {
                 DataOutputStream out;
-                synchronized (commands) {
-                    while (!close && commandIndex >= commands.size()) {
-                        commands.wait();
+                synchronized (pendingCommands) {
+                    while (!close && pendingCommands.isEmpty()) {
+                        pendingCommands.wait();
                     }
                     out = this.outputStream;
+                    writing.clear();
+                    writing.addAll(pendingCommands);
+                    pendingCommands.clear();
+                    // register before writing, output can arrive immediately
+                    for (Command next : writing) {
+                        runningCommands.put(next.getId(), next);
+                    }
+                    // wake up callers waiting for room in the queue
+                    pendingCommands.notifyAll();
                 }
-                if (commandIndex < commands.size()) {
-                    Command next = commands.get(commandIndex);
-                    next.writeCommand(out);
-                    String line = "\necho " + token + " " + commandIndex + " $?\n";
-                    out.write(line.getBytes());
+                if (!writing.isEmpty()) {
+                    for (Command next : writing) {
+                        next.writeCommand(out);
+                        String line = "\necho " + token + " " + next.getId() + " $?\n";
+                        out.write(line.getBytes());
+                    }
+                    writing.clear();
                     out.flush();
-                    commandIndex++;
-                } else if (close) {
+                } else {
+                    // close is set and all commands are written
                     out.write("\nexit 0\n".getBytes());
                     out.flush();
                     Log.d(RootCommands.TAG, "Closing shell");
                     shellProcess.waitFor();
                     out.close();
                     return;
-                } else {
-                    Thread.sleep(50);
                 }
             }
         } catch (InterruptedException e) {
@@ -242,67 +269,88 @@ public class Shell implements Closeable {
     }
 
     /**
-     * Reads output line by line, seperated by token written after every command
+     * Reads output line by line, seperated by token written after every command. Commands finish
+     * in the order of their ids, finished commands are removed from runningCommands. Lines are
+     * handed to the commands as bytes, token lines are found and parsed without creating Strings.
      * 
      * @throws IOException
      * @throws InterruptedException
      */
     private void readOutput() throws IOException, InterruptedException {
         Command command = null;
+        OutputReader reader = stdOutErr;
+        byte[] buffer;
 
-        // index of current command
-        int commandIndex = 0;
+        // id of current command
+        int commandId = 0;
         while (true) {
-            String lineStdOut = stdOutErr.readLine();
-
             // terminate on EOF
-            if (lineStdOut == null)
+            if (!reader.nextLine())
                 break;
+            buffer = reader.getBuffer();
+            int lineStart = reader.getLineStart();
+            int lineEnd = reader.getLineEnd();
 
             if (command == null) {
-
-                // break on close after last command
-                if (commandIndex >= commands.size()) {
-                    if (close)
-                        break;
-                    continue;
+                synchronized (pendingCommands) {
+                    // get current command
+                    command = runningCommands.get(commandId);
+
+                    if (command == null) {
+                        // break on close after last command
+                        if (close && pendingCommands.isEmpty() && runningCommands.size() == 0)
+                            break;
+                        continue;
+                    }
                 }
-
-                // get current command
-                command = commands.get(commandIndex);
             }
 
-            int pos = lineStdOut.indexOf(token);
-            if (pos > 0) {
-                command.processOutput(lineStdOut.substring(0, pos));
+            int pos = Utils.indexOf(buffer, lineStart, lineEnd - lineStart, TOKEN_BYTES);
+            if (pos > lineStart) {
+                // output of command without trailing newline
+                command.processOutput(buffer, lineStart, pos - lineStart);
             }
             if (pos >= 0) {
-                lineStdOut = lineStdOut.substring(pos);
-                String fields[] = lineStdOut.split(" ");
-                int id = Integer.parseInt(fields[1]);
-                if (id == commandIndex) {
-                    command.setExitCode(Integer.parseInt(fields[2]));
+                // token line: token id exitCode
+                int idStart = reader.skipField(pos);
+                int id = idStart == -1 ? Integer.MIN_VALUE : reader.parseInt(idStart);
+                if (id == commandId) {
+                    int exitCodeStart = reader.skipField(idStart);
+                    int exitCode = exitCodeStart == -1 ? -1 : reader.parseInt(exitCodeStart);
+
+                    // release command before waking up callers waiting for it
+                    synchronized (pendingCommands) {
+                        runningCommands.remove(commandId);
+                    }
+                    command.setExitCode(exitCode == Integer.MIN_VALUE ? -1 : exitCode);
 
                     // go to next command
-                    commandIndex++;
+                    commandId++;
                     command = null;
                     continue;
                 }
+                lineStart = pos;
             }
-            command.processOutput(lineStdOut);
+            command.processOutput(buffer, lineStart, lineEnd - lineStart);
         }
         Log.d(RootCommands.TAG, "Read all output");
         shellProcess.waitFor();
         stdOutErr.close();
         destroyShellProcess();
 
-        while (commandIndex < commands.size()) {
-            if (command == null) {
-                command = commands.get(commandIndex);
+        List<Command> unfinished = new ArrayList<Command>();
+        synchronized (pendingCommands) {
+            // SparseArray is sorted by id
+            for (int i = 0; i < runningCommands.size(); i++) {
+                unfinished.add(runningCommands.valueAt(i));
             }
-            command.terminated("Unexpected Termination!");
-            commandIndex++;
-            command = null;
+            runningCommands.clear();
+            unfinished.addAll(pendingCommands);
+            pendingCommands.clear();
+            pendingCommands.notifyAll();
+        }
+        for (Command next : unfinished) {
+            next.terminated("Unexpected Termination!");
         }
     }
 
@@ -314,16 +362,109 @@ public class Shell implements Closeable {
      * @throws IOException
      */
     public Command add(Command command) throws IOException {
+        synchronized (pendingCommands) {
+            enqueue(command);
+            pendingCommands.notifyAll();
+        }
+
+        return command;
+    }
+
+    /**
+     * Append command to pendingCommands, waits while MAX_PENDING_COMMANDS are queued. Has to be
+     * called with lock on pendingCommands.
+     */
+    private void enqueue(Command command) throws IOException {
+        try {
+            while (!close && pendingCommands.size() >= MAX_PENDING_COMMANDS) {
+                pendingCommands.wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for room in queue");
+        }
+        if (close)
+            throw new IOException("Unable to add commands to a closed shell");
+
+        // set shell on the command object, to know where the command is running on
+        command.addedToShell(this, nextCommandId++);
+        pendingCommands.add(command);
+    }
+
+    /**
+     * Add command to shell queue without blocking. The returned future is completed with the exit
+     * code of the command, listeners can be added to it.
+     * 
+     * @param command
+     * @return
+     * @throws IOException
+     */
+    public CommandFuture submit(Command command) throws IOException {
         if (close)
             throw new IOException("Unable to add commands to a closed shell");
-        synchronized (commands) {
-            commands.add(command);
-            // set shell on the command object, to know where the command is running on
-            command.addedToShell(this, (commands.size() - 1));
-            commands.notifyAll();
+        CommandFuture future = command.createFuture();
+        add(command);
+        return future;
+    }
+
+    /**
+     * Add commands to shell queue as one batch. They are written to the shell with one flush and
+     * executed one after another, the exit code of every command is available from the returned
+     * batch after waitForFinish().
+     * 
+     * @param batch
+     * @return
+     * @throws IOException
+     */
+    public CommandBatch addBatch(Command... batch) throws IOException {
+        synchronized (pendingCommands) {
+            for (Command command : batch) {
+                enqueue(command);
+            }
+            pendingCommands.notifyAll();
         }
 
-        return command;
+        return new CommandBatch(batch);
+    }
+
+    /**
+     * Kill the background subshell of a submitted command and its direct children, so that the
+     * following commands of this shell are not blocked by a cancelled or timed out command. This
+     * shell waits for the command, so the kill is sent in the background through another shell,
+     * a pooled root shell if this is a root shell. Problems are only logged.
+     * 
+     * @param pid
+     */
+    public void killCommandProcess(final int pid) {
+        new Thread(new Runnable() {
+            public void run() {
+                Log.d(RootCommands.TAG, "Killing process " + pid + " of command");
+
+                ShellPool pool = ShellPool.getRootShellPool();
+                Shell killShell = null;
+                try {
+                    killShell = root ? pool.acquire() : startShell();
+
+                    // stop subshell so that it starts no further children, kill children before
+                    // the subshell, they are reparented to init afterwards
+                    SimpleCommand killCommand = new SimpleCommand("kill -19 " + pid
+                            + "; for s in /proc/[0-9]*/stat; do read p c x pp r < $s;"
+                            + " [ \"$pp\" = \"" + pid + "\" ] && kill -9 $p; done; kill -9 " + pid);
+                    killShell.add(killCommand).waitForFinish();
+                } catch (Exception e) {
+                    Log.e(RootCommands.TAG, "Problem killing process " + pid + " of command!", e);
+                } finally {
+                    if (root) {
+                        pool.release(killShell);
+                    } else if (killShell != null) {
+                        try {
+                            killShell.close();
+                        } catch (IOException e) {
+                            Log.e(RootCommands.TAG, "Problem closing shell!", e);
+                        }
+                    }
+                }
+            }
+        }, "Shell Kill").start();
     }
 
     /**
@@ -332,19 +473,38 @@ public class Shell implements Closeable {
      * @throws IOException
      */
     public void close() throws IOException {
-        synchronized (commands) {
+        synchronized (pendingCommands) {
             this.close = true;
-            commands.notifyAll();
+            pendingCommands.notifyAll();
+        }
+    }
+
+    /**
+     * Returns true if the shell has been closed or its process has terminated
+     * 
+     * @return
+     */
+    public boolean isClosed() {
+        if (close) {
+            return true;
+        }
+        try {
+            shellProcess.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
         }
     }
 
     /**
-     * Returns number of queued commands
+     * Returns number of queued and running commands that have not finished yet
      * 
      * @return
      */
     public int getCommandsSize() {
-        return commands.size();
+        synchronized (pendingCommands) {
+            return pendingCommands.size() + runningCommands.size();
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
+
+/**
+ * Keeps a small number of started root shells alive, so that su has not to be executed again for
+ * every operation. A shell is leased exclusively to one caller by acquire() and has to be given
+ * back with release() in a finally block, never close a leased shell directly:
+ *
+ * <pre>
+ * Shell rootShell = ShellPool.getRootShellPool().acquire();
+ * try {
+ *     ...
+ * } finally {
+ *     ShellPool.getRootShellPool().release(rootShell);
+ * }
+ * </pre>
+ *
+ * Idle shells are closed after IDLE_TIMEOUT. A shell that has been idle for longer than
+ * HEALTH_CHECK_INTERVAL is checked with "id" before it is leased again, dead shells or shells that
+ * lost root access are replaced by a new one. Shells are shared, so callers should not change the
+ * working directory or environment of a leased shell.
+ */
+public class ShellPool {
+    public static final int MAX_IDLE_SHELLS = 2;
+    public static final long IDLE_TIMEOUT = 60 * 1000;
+    public static final long HEALTH_CHECK_INTERVAL = 5 * 1000;
+    public static final int HEALTH_CHECK_TIMEOUT = 5 * 1000;
+
+    private static ShellPool sRootShellPool;
+
+    private final int mMaxIdleShells;
+    private final long mIdleTimeout;
+
+    // idle shells, most recently released last
+    private final ArrayList<Shell> mIdleShells = new ArrayList<Shell>();
+    private final IdentityHashMap<Shell, Long> mReleaseTimes = new IdentityHashMap<Shell, Long>();
+    private final IdentityHashMap<Shell, Boolean> mLeasedShells =
+            new IdentityHashMap<Shell, Boolean>();
+
+    private ScheduledExecutorService mExpiryExecutor;
+
+    /**
+     * Get the pool of root shells shared by the whole process
+     *
+     * @return
+     */
+    public static synchronized ShellPool getRootShellPool() {
+        if (sRootShellPool == null) {
+            sRootShellPool = new ShellPool(MAX_IDLE_SHELLS, IDLE_TIMEOUT);
+        }
+        return sRootShellPool;
+    }
+
+    public ShellPool(int maxIdleShells, long idleTimeout) {
+        mMaxIdleShells = maxIdleShells;
+        mIdleTimeout = idleTimeout;
+    }
+
+    /**
+     * Lease a root shell. An idle shell is reused if one is alive, otherwise a new root shell is
+     * started.
+     *
+     * @return shell that has to be given back using release()
+     * @throws IOException
+     * @throws RootAccessDeniedException
+     */
+    public Shell acquire() throws IOException, RootAccessDeniedException {
+        while (true) {
+            Shell shell;
+            long releaseTime;
+            synchronized (this) {
+                if (mIdleShells.isEmpty()) {
+                    break;
+                }
+                shell = mIdleShells.remove(mIdleShells.size() - 1);
+                releaseTime = mReleaseTimes.remove(shell);
+                mLeasedShells.put(shell, Boolean.TRUE);
+            }
+
+            // check outside of lock, other callers can lease other shells meanwhile
+            if (isHealthy(shell, System.currentTimeMillis() - releaseTime)) {
+                Log.d(RootCommands.TAG, "Reusing root shell from pool");
+                return shell;
+            }
+            discard(shell);
+        }
+
+        Shell shell = Shell.startRootShell();
+        synchronized (this) {
+            mLeasedShells.put(shell, Boolean.TRUE);
+        }
+        return shell;
+    }
+
+    /**
+     * Give back a leased shell. It is kept for the next caller if it is still alive and the pool
+     * has room for it, otherwise it is closed.
+     *
+     * @param shell leased shell, null is ignored to simplify finally blocks
+     */
+    public void release(Shell shell) {
+        if (shell == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mLeasedShells.remove(shell) == null) {
+                Log.e(RootCommands.TAG, "Released shell that was not leased from this pool!");
+                return;
+            }
+            // a shell still running a command, e.g. after a timeout, is not reused
+            if (!shell.isClosed() && shell.getCommandsSize() == 0
+                    && mIdleShells.size() < mMaxIdleShells) {
+                mIdleShells.add(shell);
+                mReleaseTimes.put(shell, System.currentTimeMillis());
+                scheduleExpiry();
+                return;
+            }
+        }
+
+        closeShell(shell);
+    }
+
+    /**
+     * Give back a leased shell that should not be reused, e.g. because a command timed out on it
+     *
+     * @param shell leased shell, null is ignored to simplify finally blocks
+     */
+    public void discard(Shell shell) {
+        if (shell == null) {
+            return;
+        }
+
+        synchronized (this) {
+            mLeasedShells.remove(shell);
+        }
+
+        closeShell(shell);
+    }
+
+    /**
+     * Close all idle shells. Leased shells are closed when they are released.
+     */
+    public void closeIdleShells() {
+        ArrayList<Shell> shells;
+        synchronized (this) {
+            shells = new ArrayList<Shell>(mIdleShells);
+            mIdleShells.clear();
+            mReleaseTimes.clear();
+        }
+
+        for (Shell shell : shells) {
+            closeShell(shell);
+        }
+    }
+
+    /**
+     * Returns number of idle shells in the pool
+     *
+     * @return
+     */
+    public synchronized int getIdleShellsSize() {
+        return mIdleShells.size();
+    }
+
+    /**
+     * Close shells that have been idle for longer than the idle timeout
+     */
+    private void expireIdleShells() {
+        ArrayList<Shell> expired = new ArrayList<Shell>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (int i = mIdleShells.size() - 1; i >= 0; i--) {
+                Shell shell = mIdleShells.get(i);
+                if (now - mReleaseTimes.get(shell) >= mIdleTimeout) {
+                    mIdleShells.remove(i);
+                    mReleaseTimes.remove(shell);
+                    expired.add(shell);
+                }
+            }
+        }
+
+        for (Shell shell : expired) {
+            Log.d(RootCommands.TAG, "Closing idle root shell");
+            closeShell(shell);
+        }
+    }
+
+    private synchronized void scheduleExpiry() {
+        if (mExpiryExecutor == null) {
+            mExpiryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ShellPool Expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        mExpiryExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expireIdleShells();
+            }
+        }, mIdleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shells that have been idle shortly are only checked for a running process, others have to
+     * answer "id" as root
+     */
+    private boolean isHealthy(Shell shell, long idleTime) {
+        if (shell.isClosed()) {
+            return false;
+        }
+        if (idleTime < HEALTH_CHECK_INTERVAL) {
+            return true;
+        }
+
+        try {
+            SimpleCommand idCommand = new SimpleCommand(HEALTH_CHECK_TIMEOUT, "id");
+            shell.add(idCommand).waitForFinish();
+            return idCommand.getOutput().contains("uid=0");
+        } catch (Exception e) {
+            Log.e(RootCommands.TAG, "Health check of pooled root shell failed!", e);
+            return false;
+        }
+    }
+
+    private static void closeShell(Shell shell) {
+        try {
+            shell.close();
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "Problem closing pooled shell!", e);
+        }
+    }
+}
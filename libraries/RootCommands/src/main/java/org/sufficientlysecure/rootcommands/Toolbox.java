@@ -30,6 +30,7 @@ import org.sufficientlysecure.rootcommands.command.Command;
 import org.sufficientlysecure.rootcommands.command.SimpleCommand;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
 import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.Utils;
 
 import android.os.StatFs;
 import android.os.SystemClock;
@@ -84,6 +85,7 @@ public class Toolbox {
      */
     private class PsCommand extends Command {
         private String processName;
+        private byte[] processNameBytes;
         private ArrayList<String> pids;
         private String psRegex;
         private Pattern psPattern;
@@ -91,6 +93,7 @@ public class Toolbox {
         public PsCommand(String processName) {
             super("ps");
             this.processName = processName;
+            this.processNameBytes = processName.getBytes();
             pids = new ArrayList<String>();
 
             /**
@@ -119,6 +122,14 @@ public class Toolbox {
             return sb.toString();
         }
 
+        @Override
+        public void outputBytes(int id, byte[] buffer, int offset, int length) {
+            // skip lines of other processes without creating Strings
+            if (Utils.indexOf(buffer, offset, length, processNameBytes) != -1) {
+                super.outputBytes(id, buffer, offset, length);
+            }
+        }
+
         @Override
         public void output(int id, String line) {
             // general check if line contains processName
@@ -224,6 +235,119 @@ public class Toolbox {
         }
     }
 
+    /**
+     * Get pids of all processes with the given name
+     * 
+     * (commands: ps)
+     * 
+     * @param processName
+     * @return list of pids, empty if no process was found
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public ArrayList<String> getPids(String processName) throws BrokenBusyboxException,
+            TimeoutException, IOException {
+        PsCommand psCommand = new PsCommand(processName);
+        shell.add(psCommand).waitForFinish();
+
+        return psCommand.getPids();
+    }
+
+    /**
+     * This command checks if the command line of a process contains a name
+     */
+    private class CmdlineCommand extends Command {
+        private byte[] processNameBytes;
+        private boolean found = false;
+
+        public CmdlineCommand(int pid, String processName) {
+            super("cat /proc/" + pid + "/cmdline");
+            this.processNameBytes = processName.getBytes();
+        }
+
+        public boolean isFound() {
+            return found;
+        }
+
+        @Override
+        public void outputBytes(int id, byte[] buffer, int offset, int length) {
+            // arguments are separated by \0, no String is needed
+            if (Utils.indexOf(buffer, offset, length, processNameBytes) != -1) {
+                found = true;
+            }
+        }
+
+        @Override
+        public void output(int id, String line) {
+        }
+
+        @Override
+        public void afterExecution(int id, int exitCode) {
+        }
+
+    }
+
+    /**
+     * Checks if a process with the given pid is running and its command line contains the process
+     * name, so that a pid reused by another process is not mistaken for it
+     * 
+     * (commands: cat /proc/pid/cmdline)
+     * 
+     * @param pid
+     * @param processName
+     * @return
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public boolean isProcessRunning(int pid, String processName) throws BrokenBusyboxException,
+            TimeoutException, IOException {
+        CmdlineCommand cmdlineCommand = new CmdlineCommand(pid, processName);
+        shell.add(cmdlineCommand).waitForFinish();
+
+        return cmdlineCommand.isFound();
+    }
+
+    /**
+     * Kill process with pid
+     * 
+     * (commands: kill)
+     * 
+     * @param pid
+     * @return true if kill succeeded
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public boolean kill(int pid) throws BrokenBusyboxException, TimeoutException, IOException {
+        SimpleCommand killCommand = new SimpleCommand("kill -9 " + pid);
+        shell.add(killCommand).waitForFinish();
+
+        return killCommand.getExitCode() == 0;
+    }
+
+    /**
+     * Send signal to process with pid, e.g. 1 (SIGHUP) to reload a daemon. Signals are given as
+     * numbers, because not every toolbox kill knows their names.
+     * 
+     * (commands: kill)
+     * 
+     * @param pid
+     * @param signal
+     * @return true if signal was sent
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public boolean sendSignal(int pid, int signal) throws BrokenBusyboxException,
+            TimeoutException, IOException {
+        SimpleCommand signalCommand = new SimpleCommand("kill -" + signal + " " + pid);
+        shell.add(signalCommand).waitForFinish();
+
+        return signalCommand.getExitCode() == 0;
+    }
+
     /**
      * Checks if binary is running
      * 
@@ -244,6 +368,7 @@ public class Toolbox {
      */
     private class LsCommand extends Command {
         private String fileName;
+        private byte[] fileNameBytes;
         private String permissionRegex;
         private Pattern permissionPattern;
         private String symlinkRegex;
@@ -265,6 +390,7 @@ public class Toolbox {
 
             // get only filename:
             this.fileName = (new File(file)).getName();
+            this.fileNameBytes = fileName.getBytes();
             Log.d(RootCommands.TAG, "fileName: " + fileName);
 
             /**
@@ -333,6 +459,14 @@ public class Toolbox {
             return value;
         }
 
+        @Override
+        public void outputBytes(int id, byte[] buffer, int offset, int length) {
+            // skip lines of other files without creating Strings
+            if (Utils.indexOf(buffer, offset, length, fileNameBytes) != -1) {
+                super.outputBytes(id, buffer, offset, length);
+            }
+        }
+
         @Override
         public void output(int id, String line) {
             // general check if line contains file
@@ -500,8 +634,9 @@ public class Toolbox {
 
         boolean commandSuccess = false;
 
+        // the default block size of 512 bytes means one syscall pair per 512 bytes
         SimpleCommand ddCommand = new SimpleCommand("dd if=" + source + " of="
-                + destination);
+                + destination + " bs=65536");
         shell.add(ddCommand).waitForFinish();
 
         if (ddCommand.getExitCode() == 0) {
@@ -716,8 +851,7 @@ public class Toolbox {
      * 
      * For example, passing in the following string:
      * "/system/bin/some/directory/that/really/would/never/exist" will result in /system ultimately
-     * being remounted. However, keep in mind that the longer the path you supply, the more work
-     * this has to do, and the slower it will run.
+     * being remounted.
      * 
      * @param file
      *            file path
@@ -744,19 +878,15 @@ public class Toolbox {
      *             if we cannot determine how the mount is mounted.
      */
     public String getMountedAs(String path) throws Exception {
-        ArrayList<Mount> mounts = Remounter.getMounts();
-        if (mounts != null) {
-            for (Mount mount : mounts) {
-                if (path.contains(mount.getMountPoint().getAbsolutePath())) {
-                    Log.d(RootCommands.TAG, (String) mount.getFlags().toArray()[0]);
-                    return (String) mount.getFlags().toArray()[0];
-                }
-            }
-
-            throw new Exception();
-        } else {
+        Mount mount = MountTable.get(shell).find(path);
+        if (mount == null) {
             throw new Exception();
         }
+
+        // flags are a set, do not rely on rw or ro being the first one
+        String mountedAs = mount.getFlags().contains("rw") ? "rw" : "ro";
+        Log.d(RootCommands.TAG, mountedAs);
+        return mountedAs;
     }
 
     /**
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.command;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+import android.content.Context;
+
+/**
+ * Starts an executable in the background and reads its pid from $!. Output of the executable
+ * should be redirected in parameters, e.g. "> /dev/null 2>&1", the command itself finishes
+ * immediately.
+ */
+public class BackgroundExecutableCommand extends ExecutableCommand {
+    private static final String PID_MARKER = "RootCommandsPid:";
+
+    private final String executableName;
+    private int pid = -1;
+
+    public BackgroundExecutableCommand(Context context, String executableName, String parameters) {
+        super(context, executableName, parameters);
+        this.executableName = executableName;
+    }
+
+    @Override
+    public String getCommand() {
+        String line = command[0] + " &\necho " + PID_MARKER + "$!\n";
+        Log.d(RootCommands.TAG, "Sending command(s): " + line);
+        return line;
+    }
+
+    @Override
+    public void output(int id, String line) {
+        if (line.startsWith(PID_MARKER)) {
+            try {
+                pid = Integer.parseInt(line.substring(PID_MARKER.length()).trim());
+            } catch (NumberFormatException e) {
+                Log.e(RootCommands.TAG, "Could not parse pid of " + executableName + ": " + line);
+            }
+        }
+    }
+
+    @Override
+    public void afterExecution(int id, int exitCode) {
+    }
+
+    public String getExecutableName() {
+        return executableName;
+    }
+
+    /**
+     * @return pid of started executable or -1 if unknown
+     */
+    public int getPid() {
+        return pid;
+    }
+
+}
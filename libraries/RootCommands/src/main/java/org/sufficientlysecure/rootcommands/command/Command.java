@@ -25,8 +25,15 @@ import org.sufficientlysecure.rootcommands.RootCommands;
 import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
 import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.Utils;
 
 public abstract class Command {
+    private static final byte[] BROKEN_BUSYBOX_OUTPUT = "Value too large for defined data type"
+            .getBytes();
+    // printed with the pid of a submitted command, must not contain the token of Shell
+    private static final String PID_MARKER = "F*D^W@#PID";
+    private static final byte[] PID_MARKER_BYTES = PID_MARKER.getBytes();
+
     final String command[];
     boolean finished = false;
     boolean brokenBusyboxDetected = false;
@@ -34,6 +41,10 @@ public abstract class Command {
     int id;
     int timeout = RootCommands.DEFAULT_TIMEOUT;
     Shell shell = null;
+    volatile boolean cancelled = false;
+    CommandFuture future = null;
+    // pid of the background subshell of a submitted command, 0 until it is known
+    int pid = 0;
 
     public Command(String... command) {
         this.command = command;
@@ -55,6 +66,47 @@ public abstract class Command {
         this.id = id;
     }
 
+    /**
+     * This is called from Shell.submit() before adding it. Completion is reported to the returned
+     * future and its timeout is handled by a shared scheduler, do not call waitForFinish() then.
+     * 
+     * @return
+     */
+    public CommandFuture createFuture() {
+        synchronized (this) {
+            future = new CommandFuture(this);
+            future.scheduleTimeout(timeout);
+            return future;
+        }
+    }
+
+    /**
+     * Skip this command if it has not been written to the shell and discard its output. A
+     * submitted command that is already running is killed, if its pid is not known yet it is
+     * killed as soon as the pid is read.
+     */
+    void cancel() {
+        int running;
+        synchronized (this) {
+            cancelled = true;
+            running = finished ? 0 : pid;
+        }
+        if (running > 0) {
+            shell.killCommandProcess(running);
+        }
+    }
+
+    private void setPid(int pid) {
+        boolean kill;
+        synchronized (this) {
+            this.pid = pid;
+            kill = cancelled && !finished;
+        }
+        if (kill) {
+            shell.killCommandProcess(pid);
+        }
+    }
+
     /**
      * Gets command string executed on the shell
      * 
@@ -72,11 +124,81 @@ public abstract class Command {
     }
 
     public void writeCommand(OutputStream out) throws IOException {
+        if (cancelled) {
+            Log.d(RootCommands.TAG, "Command " + id + " cancelled, not writing it.");
+            return;
+        }
+        if (future != null) {
+            // run submitted commands in a background subshell and wait for it, so that its pid is
+            // known and it can be killed on cancel or timeout. wait returns its exit code.
+            out.write(("(\n" + getCommand() + ") &\necho " + PID_MARKER + " $!\nwait $!\n")
+                    .getBytes());
+            return;
+        }
         out.write(getCommand().getBytes());
     }
 
+    /**
+     * Called from Shell for every line of output, without line terminator. The buffer is only
+     * valid during this call.
+     * 
+     * @param buffer
+     * @param offset
+     * @param length
+     */
+    public void processOutput(byte[] buffer, int offset, int length) {
+        if (future != null && pid == 0) {
+            // the pid is echoed while the command runs, it can follow a partial line of output
+            int pos = Utils.indexOf(buffer, offset, length, PID_MARKER_BYTES);
+            if (pos >= 0) {
+                setPid(parsePid(buffer, pos + PID_MARKER_BYTES.length, offset + length));
+                if (pos == offset) {
+                    return;
+                }
+                length = pos - offset;
+            }
+        }
+        if (cancelled) {
+            return;
+        }
+
+        // see processOutput(String)
+        if (Utils.indexOf(buffer, offset, length, BROKEN_BUSYBOX_OUTPUT) != -1) {
+            Log.e(RootCommands.TAG, "Busybox is broken with high probability due to line: "
+                    + new String(buffer, offset, length));
+            brokenBusyboxDetected = true;
+        }
+
+        outputBytes(id, buffer, offset, length);
+    }
+
+    /**
+     * Raw output of command. Override this instead of output() to parse output without creating a
+     * String for every line, e.g. to skip uninteresting lines of ps or ls. The buffer is only valid
+     * during this call.
+     * 
+     * @param id
+     * @param buffer
+     * @param offset
+     * @param length
+     */
+    public void outputBytes(int id, byte[] buffer, int offset, int length) {
+        String line = new String(buffer, offset, length);
+        if (RootCommands.DEBUG) {
+            Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
+        }
+
+        output(id, line);
+    }
+
     public void processOutput(String line) {
-        Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
+        if (cancelled) {
+            return;
+        }
+
+        if (RootCommands.DEBUG) {
+            Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
+        }
 
         /*
          * Try to detect broken toolbox/busybox binaries (see
@@ -96,6 +218,19 @@ public abstract class Command {
 
     public abstract void output(int id, String line);
 
+    private static int parsePid(byte[] buffer, int start, int end) {
+        int pid = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                pid = pid * 10 + (b - '0');
+            } else if (pid > 0) {
+                break;
+            }
+        }
+        return pid;
+    }
+
     public void processAfterExecution(int exitCode) {
         Log.d(RootCommands.TAG, "ID: " + id + ", ExitCode: " + exitCode);
 
@@ -104,6 +239,14 @@ public abstract class Command {
 
     public abstract void afterExecution(int id, int exitCode);
 
+    public int getId() {
+        return id;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
     public void commandFinished(int id) {
         Log.d(RootCommands.TAG, "Command " + id + " finished.");
     }
@@ -115,6 +258,17 @@ public abstract class Command {
             commandFinished(id);
             this.notifyAll();
         }
+
+        // report to future of submitted command
+        CommandFuture future = this.future;
+        if (future != null && !future.isDone()) {
+            if (brokenBusyboxDetected) {
+                future.setException(new BrokenBusyboxException());
+            } else {
+                processAfterExecution(code);
+                future.setExitCode(code);
+            }
+        }
     }
 
     /**
@@ -132,6 +286,9 @@ public abstract class Command {
     }
 
     public void terminated(String reason) {
+        if (future != null) {
+            future.setException(new IOException("Command did not finish, because of " + reason));
+        }
         setExitCode(-1);
         Log.d(RootCommands.TAG, "Command " + id + " did not finish, because of " + reason);
     }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.command;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Result of a command added with Shell.submit(). The value is the exit code of the command.
+ * <p/>
+ * Listeners are called on the thread reading the shell output, on the timeout scheduler or, if the
+ * future is already done, directly on the thread adding them. They must not block and must not
+ * wait for other commands of the same shell.
+ * <p/>
+ * Cancelling or a timeout only affects this command: if it has not been written to the shell yet,
+ * it is skipped, otherwise its remaining output is discarded and it is killed. Submitted commands
+ * run in a background subshell whose pid is printed before the shell waits for it, killing the
+ * subshell and its direct children lets the following commands of the shell continue. Because of
+ * the subshell, changes of the working directory or environment by a submitted command do not
+ * affect later commands.
+ */
+public class CommandFuture implements Future<Integer> {
+
+    public interface Listener {
+        void onComplete(CommandFuture future);
+    }
+
+    // one scheduler for the timeouts of all submitted commands
+    private static ScheduledExecutorService sTimeoutScheduler;
+
+    private final Command mCommand;
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private boolean mDone = false;
+    private boolean mCancelled = false;
+    private int mExitCode;
+    private Throwable mException;
+    private TimeoutTask mTimeoutTask;
+
+    CommandFuture(Command command) {
+        mCommand = command;
+    }
+
+    public Command getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Add listener that is called once when the command finished, failed, timed out or was
+     * cancelled
+     *
+     * @param listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // skip writing or discard output of command
+        mCommand.cancel();
+        return complete(0, null, true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized Integer get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized Integer get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long end = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!mDone) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new TimeoutException("Command did not finish in time.");
+            }
+            wait(remaining);
+        }
+        return getResult();
+    }
+
+    private Integer getResult() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException("Command was cancelled.");
+        }
+        if (mException != null) {
+            throw new ExecutionException(mException);
+        }
+        return mExitCode;
+    }
+
+    void setExitCode(int exitCode) {
+        complete(exitCode, null, false);
+    }
+
+    void setException(Throwable exception) {
+        complete(0, exception, false);
+    }
+
+    /**
+     * Complete future once, later calls are ignored
+     *
+     * @return true if this call completed the future
+     */
+    private boolean complete(int exitCode, Throwable exception, boolean cancelled) {
+        ArrayList<Listener> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mExitCode = exitCode;
+            mException = exception;
+            mCancelled = cancelled;
+            if (mTimeoutTask != null) {
+                mTimeoutTask.cancel();
+                mTimeoutTask = null;
+            }
+            listeners = new ArrayList<Listener>(mListeners);
+            mListeners.clear();
+            notifyAll();
+        }
+
+        for (Listener listener : listeners) {
+            try {
+                listener.onComplete(this);
+            } catch (RuntimeException e) {
+                Log.e(RootCommands.TAG, "Exception in listener of command future!", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fail this future with a TimeoutException if the command did not finish after timeout
+     * milliseconds
+     *
+     * @param timeout
+     */
+    synchronized void scheduleTimeout(int timeout) {
+        if (mDone) {
+            return;
+        }
+        mTimeoutTask = new TimeoutTask(this);
+        mTimeoutTask.mScheduled = getTimeoutScheduler().schedule(mTimeoutTask, timeout,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getTimeoutScheduler() {
+        if (sTimeoutScheduler == null) {
+            sTimeoutScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Command Timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimeoutScheduler;
+    }
+
+    /**
+     * Cancelled tasks stay in the queue of the scheduler until they are due, so the reference to
+     * the future is cleared to not keep finished commands and their output alive
+     */
+    private static class TimeoutTask implements Runnable {
+        private volatile CommandFuture mFuture;
+        private ScheduledFuture<?> mScheduled;
+
+        TimeoutTask(CommandFuture future) {
+            mFuture = future;
+        }
+
+        void cancel() {
+            mFuture = null;
+            if (mScheduled != null) {
+                mScheduled.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            CommandFuture future = mFuture;
+            if (future != null) {
+                Log.d(RootCommands.TAG, "Timeout of submitted command.");
+                future.mCommand.cancel();
+                future.setException(new TimeoutException("Timeout has occurred."));
+            }
+        }
+    }
+}
@@ -23,6 +23,10 @@ public class SimpleCommand extends Command {
         super(command);
     }
 
+    public SimpleCommand(int timeout, String... command) {
+        super(timeout, command);
+    }
+
     @Override
     public void output(int id, String line) {
         sb.append(line).append('\n');
@@ -36,8 +40,4 @@ public class SimpleCommand extends Command {
         return sb.toString();
     }
 
-    public int getExitCode() {
-        return exitCode;
-    }
-
 }
\ No newline at end of file
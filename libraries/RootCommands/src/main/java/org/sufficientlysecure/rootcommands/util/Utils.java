@@ -102,4 +102,26 @@ public class Utils {
         }
         return process;
     }
+
+    /**
+     * Find bytes of pattern in buffer without creating Strings
+     * 
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param pattern
+     * @return index in buffer where pattern starts or -1 if not found
+     */
+    public static int indexOf(byte[] buffer, int offset, int length, byte[] pattern) {
+        int last = offset + length - pattern.length;
+        outer: for (int i = offset; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
 }